@@ -0,0 +1,200 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+
+/**
+ * Drives a {@link WayRefTableModel} headless on synthetic ways and measures the hot
+ * paths of the way editor.
+ *
+ * Run with <code>java -jar target/benchmarks.jar</code>. The main method adds the
+ * GC profiler, so every result comes with its allocation rate
+ * (<code>gc.alloc.rate.norm</code> is the number of bytes allocated per operation).
+ *
+ * The selection is either dense (one block covering a tenth of the way) or sparse
+ * (every hundredth node).
+ *
+ * The geometry and the validation of the model are stopped, so that no background
+ * work runs alongside the measured edits. The tags benchmark changes tags in the
+ * dataset and waits until the events reached the model through the
+ * {@link LayerEventDispatcher} and the {@link DataSetEventCoalescer} on the EDT.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WayRefTableModelBenchmark {
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int nodeCount;
+
+    @Param({ "dense", "sparse" })
+    public String selection;
+
+    private WayRefTableModel model;
+    private RowRanges selectedRanges;
+    private List<Node> selectedNodes;
+    private List<Node> taggedNodes;
+    private boolean tagValue;
+
+    private static final Runnable NO_OP = new Runnable() {
+        public void run() {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (Main.pref == null) {
+            Main.pref = new Preferences();
+        }
+        // deliver the dataset events right away instead of after a timer
+        Main.pref.put(DataSetEventCoalescer.PREF_INTERVAL, "0");
+
+        Random random = new Random(42);
+        DataSet dataSet = new DataSet();
+        List<Node> nodes = new ArrayList<Node>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            Node node = new Node(new LatLon(random.nextDouble() * 10, random.nextDouble() * 10));
+            dataSet.addPrimitive(node);
+            nodes.add(node);
+        }
+        Way way = new Way();
+        way.setNodes(nodes);
+        dataSet.addPrimitive(way);
+        model = new WayRefTableModel(new OsmDataLayer(dataSet, "benchmark", null), way);
+        model.getGeometry().dispose();
+        model.getValidator().dispose();
+        model.register();
+
+        selectedRanges = new RowRanges();
+        if ("dense".equals(selection)) {
+            selectedRanges.add(nodeCount / 2, nodeCount / 2 + nodeCount / 10 - 1);
+        } else {
+            for (int i = 1; i < nodeCount - 1; i += 100) {
+                selectedRanges.add(i, i);
+            }
+        }
+        selectedNodes = new ArrayList<Node>();
+        for (int r = 0; r < selectedRanges.size(); r++) {
+            for (int i = selectedRanges.start(r); i <= selectedRanges.end(r); i++) {
+                selectedNodes.add(nodes.get(i));
+            }
+        }
+        taggedNodes = new ArrayList<Node>(selectedNodes.subList(0, Math.min(selectedNodes.size(), 1000)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        model.unregister();
+    }
+
+    @Benchmark
+    public void getValueAtScan(Blackhole bh) {
+        int rows = model.getRowCount();
+        for (int i = 0; i < rows; i++) {
+            bh.consume(model.getValueAt(i, 0));
+        }
+    }
+
+    @Benchmark
+    public void getNodeIdScan(Blackhole bh) {
+        int rows = model.getRowCount();
+        for (int i = 0; i < rows; i++) {
+            bh.consume(model.getNodeId(i));
+        }
+    }
+
+    @Benchmark
+    public void setSelectedMembers() {
+        model.setSelectedMembers(selectedNodes);
+    }
+
+    @Benchmark
+    public void getSelectedRanges(Blackhole bh) {
+        selectedRanges.selectIn(model.getSelectionModel());
+        bh.consume(model.getSelectedRanges());
+    }
+
+    /**
+     * Moves the selection up and back down, so that the way is the same after
+     * every invocation
+     */
+    @Benchmark
+    public void moveUpDown() {
+        model.moveUp(selectedRanges);
+        model.moveDown(selectedRanges.shifted(-1));
+    }
+
+    /**
+     * Removes the selection and brings it back through the local undo stack
+     */
+    @Benchmark
+    public void removeAndUndo() {
+        model.remove(selectedRanges);
+        model.undo();
+    }
+
+    @Benchmark
+    public void reverse() {
+        model.getSelectionModel().clearSelection();
+        model.reverse();
+    }
+
+    /**
+     * Changes the tags of up to 1000 selected nodes in the dataset and waits until
+     * the batch of events was delivered to the model on the EDT
+     */
+    @Benchmark
+    public void tagsChangedDelivery() throws InterruptedException, InvocationTargetException {
+        tagValue = !tagValue;
+        String value = tagValue ? "yes" : "no";
+        for (Node node : taggedNodes) {
+            node.put("benchmark", value);
+        }
+        // the coalescer posted its delivery to the EDT before this
+        SwingUtilities.invokeAndWait(NO_OP);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(WayRefTableModelBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+}
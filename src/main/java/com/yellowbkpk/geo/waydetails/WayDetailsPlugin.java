@@ -5,7 +5,9 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
@@ -27,7 +29,7 @@ import com.yellowbkpk.geo.waydetails.editor.WayEditor;
 public class WayDetailsPlugin extends Plugin {
 
     private JMenuItem wayDetailsMenuItem;
-    private Way selectedWay;
+    private final List<Way> selectedWays = new ArrayList<Way>();
 
     public WayDetailsPlugin(PluginInformation info) {
         super(info);
@@ -39,12 +41,14 @@ public class WayDetailsPlugin extends Plugin {
         org.openstreetmap.josm.data.osm.DataSet.addSelectionListener(new SelectionChangedListener() {
 
             public void selectionChanged(Collection<? extends OsmPrimitive> selection) {
-                if (selection.size() == 1 && isAllWays(selection)) {
+                selectedWays.clear();
+                if (!selection.isEmpty() && isAllWays(selection)) {
                     enableWayDetailsMenuItem();
-                    selectedWay = (Way) selection.iterator().next();
+                    for (OsmPrimitive primitive : selection) {
+                        selectedWays.add((Way) primitive);
+                    }
                 } else {
                     disableWayDetailsMenuItem();
-                    selectedWay = null;
                 }
             }
         });
@@ -56,7 +60,7 @@ public class WayDetailsPlugin extends Plugin {
         public WayDetailsAction() {
             super(tr("Way details..."),
                     null,
-                    tr("Details about the selected way."),
+                    tr("Details about the selected ways."),
                     Shortcut.registerShortcut("tools:way_details",
                             tr("Tool: {0}", tr("Way Details")),
                             KeyEvent.VK_E,
@@ -66,16 +70,17 @@ public class WayDetailsPlugin extends Plugin {
         }
 
         public void actionPerformed(ActionEvent e) {
-            if (selectedWay != null) {
-                showDetailsDialogForWay(selectedWay);
+            if (!selectedWays.isEmpty()) {
+                showDetailsDialogForWays(new ArrayList<Way>(selectedWays));
             }
         }
         
     }
 
-    private void showDetailsDialogForWay(Way way) {
-        WayEditor editor = new WayEditor(Main.main.getEditLayer(), way);
-        editor.setModal(true);
+    private void showDetailsDialogForWays(List<Way> ways) {
+        WayEditor editor = new WayEditor(Main.main.getEditLayer(), ways);
+        // not modal, so that clicks on the map can select rows in the editor
+        editor.setModal(false);
         editor.setVisible(true);
     }
 
@@ -0,0 +1,191 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import javax.swing.JLabel;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.MutableTreeNode;
+
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.DefaultNameFormatter;
+import org.openstreetmap.josm.tools.ImageProvider;
+
+/**
+ * Changes the nodes of a way by applying an edit script to them.
+ *
+ * Unlike a {@link org.openstreetmap.josm.command.ChangeCommand}, which keeps a full
+ * copy of the way before and after the change, this command only keeps the hunks
+ * of the script: where they start and which nodes they remove and add. Repeatedly
+ * applying small edits to huge ways therefore doesn't fill the undo stack with node
+ * lists.
+ */
+public class ChangeWayNodesCommand extends Command {
+
+    private final Way way;
+
+    /* the hunks of the edit script, in ascending order */
+    private final int[] oldStarts;
+    private final int[] newStarts;
+    private final Node[][] removed;
+    private final Node[][] added;
+
+    private boolean wasModified;
+
+    /**
+     * Creates the command which changes the nodes of <code>way</code> to
+     * <code>newNodes</code>
+     *
+     * @param way the way
+     * @param newNodes the new nodes of the way
+     * @return the command, or null if the nodes don't change
+     */
+    public static ChangeWayNodesCommand create(Way way, List<Node> newNodes) {
+        return create(way, way.getNodes(), newNodes);
+    }
+
+    /**
+     * Creates the command which changes the nodes of <code>way</code> from
+     * <code>oldNodes</code> to <code>newNodes</code>
+     *
+     * @return the command, or null if the nodes don't change
+     */
+    public static ChangeWayNodesCommand create(Way way, List<Node> oldNodes, List<Node> newNodes) {
+        long[] oldIds = uniqueIds(oldNodes);
+        long[] newIds = uniqueIds(newNodes);
+        NodeListDiff diff = new NodeListDiff(oldIds, newIds);
+        BitSet deleted = diff.getDeleted();
+        BitSet inserted = diff.getInserted();
+        if (deleted.isEmpty() && inserted.isEmpty())
+            return null;
+
+        // turn the positions into hunks by walking both sequences at once
+        List<int[]> hunks = new ArrayList<int[]>();
+        int i = 0;
+        int j = 0;
+        while (i < oldIds.length || j < newIds.length) {
+            if ((i < oldIds.length && deleted.get(i)) || (j < newIds.length && inserted.get(j))) {
+                int oldStart = i;
+                int newStart = j;
+                while (i < oldIds.length && deleted.get(i)) {
+                    i++;
+                }
+                while (j < newIds.length && inserted.get(j)) {
+                    j++;
+                }
+                hunks.add(new int[] { oldStart, i, newStart, j });
+            } else {
+                i++;
+                j++;
+            }
+        }
+        int count = hunks.size();
+        int[] oldStarts = new int[count];
+        int[] newStarts = new int[count];
+        Node[][] removed = new Node[count][];
+        Node[][] added = new Node[count][];
+        for (int h = 0; h < count; h++) {
+            int[] hunk = hunks.get(h);
+            oldStarts[h] = hunk[0];
+            newStarts[h] = hunk[2];
+            removed[h] = oldNodes.subList(hunk[0], hunk[1]).toArray(new Node[hunk[1] - hunk[0]]);
+            added[h] = newNodes.subList(hunk[2], hunk[3]).toArray(new Node[hunk[3] - hunk[2]]);
+        }
+        return new ChangeWayNodesCommand(way, oldStarts, newStarts, removed, added);
+    }
+
+    private static long[] uniqueIds(List<Node> nodes) {
+        long[] ids = new long[nodes.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = nodes.get(i).getUniqueId();
+        }
+        return ids;
+    }
+
+    protected ChangeWayNodesCommand(Way way, int[] oldStarts, int[] newStarts, Node[][] removed, Node[][] added) {
+        this.way = way;
+        this.oldStarts = oldStarts;
+        this.newStarts = newStarts;
+        this.removed = removed;
+        this.added = added;
+    }
+
+    /**
+     * Replaces <code>from[h]</code> with <code>to[h]</code> at <code>starts[h]</code>
+     * for every hunk <code>h</code>
+     */
+    private static List<Node> patch(List<Node> nodes, int[] starts, Node[][] from, Node[][] to) {
+        int size = nodes.size();
+        for (int h = 0; h < starts.length; h++) {
+            size += to[h].length - from[h].length;
+        }
+        ArrayList<Node> ret = new ArrayList<Node>(size);
+        int pos = 0;
+        for (int h = 0; h < starts.length; h++) {
+            ret.addAll(nodes.subList(pos, starts[h]));
+            ret.addAll(Arrays.asList(to[h]));
+            pos = starts[h] + from[h].length;
+        }
+        ret.addAll(nodes.subList(pos, nodes.size()));
+        return ret;
+    }
+
+    /**
+     * Replies the way whose nodes this command changes
+     */
+    public Way getWay() {
+        return way;
+    }
+
+    /**
+     * Replies the number of nodes this command removes and adds
+     */
+    public int getChangedNodeCount() {
+        int n = 0;
+        for (int h = 0; h < oldStarts.length; h++) {
+            n += removed[h].length + added[h].length;
+        }
+        return n;
+    }
+
+    @Override
+    public boolean executeCommand() {
+        // deliberately not calling super.executeCommand(), which keeps a full copy of
+        // the way to undo the command
+        wasModified = way.isModified();
+        way.setNodes(patch(way.getNodes(), oldStarts, removed, added));
+        way.setModified(true);
+        return true;
+    }
+
+    @Override
+    public void undoCommand() {
+        way.setNodes(patch(way.getNodes(), newStarts, added, removed));
+        way.setModified(wasModified);
+    }
+
+    @Override
+    public void fillModifiedData(Collection<OsmPrimitive> modified, Collection<OsmPrimitive> deleted,
+            Collection<OsmPrimitive> added) {
+        modified.add(way);
+    }
+
+    @Override
+    public MutableTreeNode description() {
+        return new DefaultMutableTreeNode(
+                new JLabel(tr("Change nodes of way {0}",
+                        way.getDisplayName(DefaultNameFormatter.getInstance())),
+                        ImageProvider.get(OsmPrimitiveType.WAY),
+                        JLabel.HORIZONTAL));
+    }
+}
@@ -0,0 +1,172 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.BitSet;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.projection.Projection;
+
+/**
+ * The coordinates of the nodes of a {@link WayRefTableModel} in row order, as
+ * primitive arrays of latitudes, longitudes, eastings and northings. Shared by
+ * everything in the editor which needs the geometry of the way, so that a node is
+ * read and projected once, not once per feature and repaint.
+ *
+ * Rows are read from their node lazily, on the first access after they were
+ * inserted, reordered or moved. Moves arrive as updates of the rows of the moved
+ * node, which the model finds through its node to row index. The arrays are
+ * shifted along with inserted and removed rows. When the projection changes, all
+ * rows are read again.
+ *
+ * Coordinates of nodes without coordinates (incomplete nodes) are NaN. Only to be
+ * used on the EDT.
+ */
+public class CoordinateCache implements TableModelListener {
+
+    private final WayRefTableModel model;
+
+    private int size;
+    private double[] lat = new double[0];
+    private double[] lon = new double[0];
+    private double[] east = new double[0];
+    private double[] north = new double[0];
+
+    /** rows whose coordinates have to be read from their node again */
+    private final BitSet stale = new BitSet();
+    private Projection projection;
+
+    public CoordinateCache(WayRefTableModel model) {
+        this.model = model;
+        invalidate();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Drops all coordinates, they are read again on the next access
+     */
+    public void invalidate() {
+        size = model.getRowCount();
+        if (lat.length < size) {
+            lat = new double[size];
+            lon = new double[size];
+            east = new double[size];
+            north = new double[size];
+        }
+        stale.clear();
+        stale.set(0, size);
+        projection = Main.proj;
+    }
+
+    public double getLat(int row) {
+        validate(row, row);
+        return lat[row];
+    }
+
+    public double getLon(int row) {
+        validate(row, row);
+        return lon[row];
+    }
+
+    public double getEast(int row) {
+        validate(row, row);
+        return east[row];
+    }
+
+    public double getNorth(int row) {
+        validate(row, row);
+        return north[row];
+    }
+
+    /**
+     * Copies the latitudes and longitudes of the rows <code>from</code> to
+     * <code>to</code> to the beginning of <code>lats</code> and <code>lons</code>
+     */
+    public void copyLatLon(int from, int to, double[] lats, double[] lons) {
+        validate(from, to);
+        System.arraycopy(lat, from, lats, 0, to - from + 1);
+        System.arraycopy(lon, from, lons, 0, to - from + 1);
+    }
+
+    /**
+     * Copies the eastings and northings of the rows <code>from</code> to
+     * <code>to</code> to the beginning of <code>easts</code> and <code>norths</code>
+     */
+    public void copyEastNorth(int from, int to, double[] easts, double[] norths) {
+        validate(from, to);
+        System.arraycopy(east, from, easts, 0, to - from + 1);
+        System.arraycopy(north, from, norths, 0, to - from + 1);
+    }
+
+    /**
+     * Reads the coordinates of the stale rows from <code>from</code> to
+     * <code>to</code> from their nodes
+     */
+    public void validate(int from, int to) {
+        if (projection != Main.proj) {
+            invalidate();
+        }
+        for (int row = stale.nextSetBit(from); row >= 0 && row <= to; row = stale.nextSetBit(row + 1)) {
+            Node node = model.getReferredPrimitive(row);
+            LatLon coor = node.getCoor();
+            EastNorth en = coor == null ? null : node.getEastNorth();
+            if (coor == null) {
+                lat[row] = Double.NaN;
+                lon[row] = Double.NaN;
+            } else {
+                lat[row] = coor.lat();
+                lon[row] = coor.lon();
+            }
+            if (en == null) {
+                east[row] = Double.NaN;
+                north[row] = Double.NaN;
+            } else {
+                east[row] = en.east();
+                north[row] = en.north();
+            }
+            stale.clear(row);
+        }
+    }
+
+    public void tableChanged(TableModelEvent e) {
+        if (e.getColumn() != TableModelEvent.ALL_COLUMNS)
+            return;
+        int first = e.getFirstRow();
+        int last = e.getLastRow();
+        if (last == Integer.MAX_VALUE || first == TableModelEvent.HEADER_ROW) {
+            invalidate();
+            return;
+        }
+        int count = last - first + 1;
+        switch (e.getType()) {
+        case TableModelEvent.INSERT:
+            lat = RowArrays.open(lat, first, count, size + count);
+            lon = RowArrays.open(lon, first, count, size + count);
+            east = RowArrays.open(east, first, count, size + count);
+            north = RowArrays.open(north, first, count, size + count);
+            size += count;
+            RowArrays.shift(stale, first, count);
+            stale.set(first, last + 1);
+            break;
+        case TableModelEvent.DELETE:
+            RowArrays.close(lat, first, count, size);
+            RowArrays.close(lon, first, count, size);
+            RowArrays.close(east, first, count, size);
+            RowArrays.close(north, first, count, size);
+            size -= count;
+            RowArrays.shift(stale, first, -count);
+            break;
+        default:
+            stale.set(first, last + 1);
+            break;
+        }
+    }
+}
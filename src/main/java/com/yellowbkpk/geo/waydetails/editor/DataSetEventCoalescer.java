@@ -0,0 +1,197 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Arrays;
+import java.util.Collection;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+
+/**
+ * Batches the dataset and selection events a {@link WayRefTableModel} listens to, so
+ * that bulk edits, scripts or conflict merges which fire hundreds of events a second
+ * cause at most one refresh of the model per interval.
+ *
+ * Events are merged while they are pending: repeated data changes collapse into
+ * one, only the latest selection is kept and the nodes whose tags changed or which
+ * moved are collected and turned into sets of dirty rows when the batch is
+ * delivered. A data change supersedes all of them, because it refreshes every row
+ * anyway.
+ *
+ * The interval is read from the preference {@value #PREF_INTERVAL} (in
+ * milliseconds, defaults to about one frame). With an interval of 0 events are
+ * delivered as soon as possible. Batches are always delivered on the EDT.
+ */
+public class DataSetEventCoalescer implements ActionListener {
+
+    public static final String PREF_INTERVAL = "waydetails.event-coalesce-interval";
+    public static final int DEFAULT_INTERVAL = 16;
+
+    private final WayRefTableModel model;
+    private final Timer timer;
+
+    /* pending events, guarded by this */
+    private boolean dataChanged;
+    private Collection<? extends OsmPrimitive> selection;
+    private long[] taggedNodes = new long[16];
+    private int taggedCount;
+    private long[] movedNodes = new long[16];
+    private int movedCount;
+
+    /* the batch being delivered, only used on the EDT */
+    private long[] deliveredNodes = new long[16];
+
+    public DataSetEventCoalescer(WayRefTableModel model) {
+        this(model, Main.pref == null ? DEFAULT_INTERVAL : Main.pref.getInteger(PREF_INTERVAL, DEFAULT_INTERVAL));
+    }
+
+    /**
+     * constructor
+     *
+     * @param model the model the batched events are delivered to
+     * @param interval the interval in milliseconds; 0 to deliver events as soon as possible
+     */
+    public DataSetEventCoalescer(WayRefTableModel model, int interval) {
+        this.model = model;
+        if (interval > 0) {
+            timer = new Timer(interval, this);
+            timer.setRepeats(false);
+        } else {
+            timer = null;
+        }
+    }
+
+    /**
+     * Records a data change. Supersedes pending selection and tag changes.
+     */
+    public void dataChanged() {
+        synchronized (this) {
+            dataChanged = true;
+            selection = null;
+            taggedCount = 0;
+            movedCount = 0;
+        }
+        schedule();
+    }
+
+    /**
+     * Records a selection change. Only the latest selection is delivered.
+     */
+    public void selectionChanged(Collection<? extends OsmPrimitive> newSelection) {
+        synchronized (this) {
+            if (!dataChanged) {
+                selection = newSelection;
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Records a tag change of the node with the unique id <code>nodeId</code>
+     */
+    public void tagsChanged(long nodeId) {
+        synchronized (this) {
+            if (dataChanged)
+                return;
+            if (taggedCount == taggedNodes.length) {
+                taggedNodes = Arrays.copyOf(taggedNodes, taggedCount * 2);
+            }
+            taggedNodes[taggedCount++] = nodeId;
+        }
+        schedule();
+    }
+
+    /**
+     * Records a move of the node with the unique id <code>nodeId</code>
+     */
+    public void nodeMoved(long nodeId) {
+        synchronized (this) {
+            if (dataChanged)
+                return;
+            if (movedCount == movedNodes.length) {
+                movedNodes = Arrays.copyOf(movedNodes, movedCount * 2);
+            }
+            movedNodes[movedCount++] = nodeId;
+        }
+        schedule();
+    }
+
+    /**
+     * Drops all pending events and stops delivering them
+     */
+    public void stop() {
+        if (timer != null) {
+            timer.stop();
+        }
+        synchronized (this) {
+            dataChanged = false;
+            selection = null;
+            taggedCount = 0;
+            movedCount = 0;
+        }
+    }
+
+    private void schedule() {
+        if (timer != null) {
+            if (!timer.isRunning()) {
+                timer.start();
+            }
+        } else if (SwingUtilities.isEventDispatchThread()) {
+            flush();
+        } else {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    public void actionPerformed(ActionEvent e) {
+        flush();
+    }
+
+    /**
+     * Delivers the pending events to the model. Has to be called on the EDT.
+     */
+    public void flush() {
+        boolean data;
+        Collection<? extends OsmPrimitive> sel;
+        int tagged;
+        int moved;
+        synchronized (this) {
+            data = dataChanged;
+            sel = selection;
+            tagged = taggedCount;
+            moved = movedCount;
+            if (deliveredNodes.length < tagged + moved) {
+                deliveredNodes = new long[taggedNodes.length + movedNodes.length];
+            }
+            // tagged nodes first, then the moved nodes
+            System.arraycopy(taggedNodes, 0, deliveredNodes, 0, tagged);
+            System.arraycopy(movedNodes, 0, deliveredNodes, tagged, moved);
+            dataChanged = false;
+            selection = null;
+            taggedCount = 0;
+            movedCount = 0;
+        }
+        if (data) {
+            model.refreshData();
+            return;
+        }
+        if (tagged > 0) {
+            model.refreshTaggedNodes(deliveredNodes, 0, tagged);
+        }
+        if (moved > 0) {
+            model.refreshMovedNodes(deliveredNodes, tagged, moved);
+        }
+        if (sel != null) {
+            model.refreshJosmSelection(sel);
+        }
+    }
+}
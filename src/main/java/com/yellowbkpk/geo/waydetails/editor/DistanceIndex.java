@@ -0,0 +1,105 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+/**
+ * A prefix sum index (Fenwick tree) over the segment lengths of a way, for linear
+ * referencing: the distance along the way up to a row, and the row at a distance
+ * along the way, both in O(log n).
+ *
+ * The length of a single row is changed in O(log n). Building the index from the
+ * lengths is O(n); this is done after rows were inserted or removed, which shift
+ * all following lengths anyway. NaN lengths count as 0.
+ */
+public class DistanceIndex {
+
+    private double[] tree = new double[1];
+    private int size;
+
+    /**
+     * Builds the index over the first <code>size</code> elements of
+     * <code>lengths</code>
+     */
+    public void build(double[] lengths, int size) {
+        this.size = size;
+        if (tree.length < size + 1) {
+            tree = new double[size + 1];
+        }
+        tree[0] = 0;
+        for (int i = 1; i <= size; i++) {
+            double l = lengths[i - 1];
+            tree[i] = Double.isNaN(l) ? 0 : l;
+        }
+        // push every node into its parent, in one pass
+        for (int i = 1; i <= size; i++) {
+            int parent = i + (i & -i);
+            if (parent <= size) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds <code>delta</code> to the length of <code>row</code>
+     */
+    public void add(int row, double delta) {
+        if (Double.isNaN(delta) || delta == 0)
+            return;
+        for (int i = row + 1; i <= size; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * Replaces the length <code>oldLength</code> of <code>row</code> with
+     * <code>newLength</code>
+     */
+    public void set(int row, double oldLength, double newLength) {
+        add(row, (Double.isNaN(newLength) ? 0 : newLength) - (Double.isNaN(oldLength) ? 0 : oldLength));
+    }
+
+    /**
+     * Replies the sum of the lengths of the rows 0 to <code>row</code>
+     */
+    public double prefixSum(int row) {
+        double sum = 0;
+        for (int i = Math.min(row, size - 1) + 1; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Replies the sum of all lengths
+     */
+    public double total() {
+        return prefixSum(size - 1);
+    }
+
+    /**
+     * Replies the first row whose prefix sum is at least <code>distance</code>,
+     * that is the row at the end of the segment containing <code>distance</code>.
+     * Replies 0 for distances up to 0, and the last row for distances beyond the
+     * end.
+     */
+    public int findRow(double distance) {
+        if (size == 0)
+            return -1;
+        if (distance <= 0)
+            return 0;
+        int pos = 0;
+        double remaining = distance;
+        for (int step = Integer.highestOneBit(size); step > 0; step >>= 1) {
+            int next = pos + step;
+            if (next <= size && tree[next] < remaining) {
+                pos = next;
+                remaining -= tree[next];
+            }
+        }
+        // pos is the number of rows whose prefix sum is below the distance
+        return Math.min(pos, size - 1);
+    }
+}
@@ -0,0 +1,262 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.LinkedList;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.osm.Node;
+
+/**
+ * The local undo/redo stack of a {@link WayRefTableModel}.
+ *
+ * Every edit is recorded as a small operation on row ranges which knows how to undo
+ * and redo itself, instead of a copy of the node list. Only removals keep the nodes
+ * they removed. The total weight of the recorded edits (roughly the number of rows
+ * and range bounds they keep) is capped by the preference {@value #PREF_MAX_WEIGHT};
+ * the oldest edits are dropped first. The newest edit is always kept, even if it
+ * alone is heavier, so that the last edit can be undone.
+ */
+public class EditHistory {
+
+    public static final String PREF_MAX_WEIGHT = "waydetails.undo.max-weight";
+    public static final int DEFAULT_MAX_WEIGHT = 250000;
+
+    /**
+     * A recorded edit of the nodes of a {@link WayRefTableModel}
+     */
+    public interface Edit {
+        void undo(WayRefTableModel model);
+        void redo(WayRefTableModel model);
+
+        /**
+         * Replies the number of rows and range bounds this edit keeps
+         */
+        int getWeight();
+    }
+
+    private final LinkedList<Edit> undoStack = new LinkedList<Edit>();
+    private final LinkedList<Edit> redoStack = new LinkedList<Edit>();
+    private final int maxWeight;
+    private int weight;
+
+    public EditHistory() {
+        this(Main.pref == null ? DEFAULT_MAX_WEIGHT : Main.pref.getInteger(PREF_MAX_WEIGHT, DEFAULT_MAX_WEIGHT));
+    }
+
+    public EditHistory(int maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Records <code>edit</code>, which is about to be done. Drops the redo stack.
+     */
+    public void add(Edit edit) {
+        for (Edit e : redoStack) {
+            weight -= e.getWeight();
+        }
+        redoStack.clear();
+        undoStack.addFirst(edit);
+        weight += edit.getWeight();
+        while (weight > maxWeight && undoStack.size() > 1) {
+            weight -= undoStack.removeLast().getWeight();
+        }
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    public void undo(WayRefTableModel model) {
+        if (!canUndo())
+            return;
+        // move the edit first, the model fires its events while undoing it
+        Edit edit = undoStack.removeFirst();
+        redoStack.addFirst(edit);
+        edit.undo(model);
+    }
+
+    public void redo(WayRefTableModel model) {
+        if (!canRedo())
+            return;
+        Edit edit = redoStack.removeFirst();
+        undoStack.addFirst(edit);
+        edit.redo(model);
+    }
+
+    public void clear() {
+        undoStack.clear();
+        redoStack.clear();
+        weight = 0;
+    }
+
+    /**
+     * Replies the total weight of the recorded edits
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* Edits                                                                       */
+    /* --------------------------------------------------------------------------- */
+
+    /**
+     * Every range was moved by one row, up (<code>delta</code> -1) or down
+     * (<code>delta</code> 1)
+     */
+    static class ShiftEdit implements Edit {
+        private final RowRanges ranges;
+        private final int delta;
+
+        ShiftEdit(RowRanges ranges, int delta) {
+            this.ranges = ranges;
+            this.delta = delta;
+        }
+
+        public void undo(WayRefTableModel model) {
+            model.shiftRanges(ranges.shifted(delta), -delta);
+        }
+
+        public void redo(WayRefTableModel model) {
+            model.shiftRanges(ranges, delta);
+        }
+
+        public int getWeight() {
+            return 2 * ranges.size();
+        }
+    }
+
+    /**
+     * The rows in <code>ranges</code> were moved into one block starting at row
+     * <code>to</code>
+     */
+    static class GatherEdit implements Edit {
+        private final RowRanges ranges;
+        private final int to;
+
+        GatherEdit(RowRanges ranges, int to) {
+            this.ranges = ranges;
+            this.to = to;
+        }
+
+        public void undo(WayRefTableModel model) {
+            model.scatterRanges(to, ranges);
+        }
+
+        public void redo(WayRefTableModel model) {
+            model.gatherRanges(ranges, to);
+        }
+
+        public int getWeight() {
+            return 2 * ranges.size();
+        }
+    }
+
+    /**
+     * The rows in <code>ranges</code> were removed
+     */
+    static class RemoveEdit implements Edit {
+        private final RowRanges ranges;
+        private final Node[] removed;
+
+        RemoveEdit(RowRanges ranges, Node[] removed) {
+            this.ranges = ranges;
+            this.removed = removed;
+        }
+
+        public void undo(WayRefTableModel model) {
+            model.insertRanges(ranges, removed);
+        }
+
+        public void redo(WayRefTableModel model) {
+            model.removeRanges(ranges);
+        }
+
+        public int getWeight() {
+            return removed.length + 2 * ranges.size();
+        }
+    }
+
+    /**
+     * <code>inserted</code> were inserted before <code>index</code>
+     */
+    static class InsertEdit implements Edit {
+        private final int index;
+        private final Node[] inserted;
+
+        InsertEdit(int index, Node[] inserted) {
+            this.index = index;
+            this.inserted = inserted;
+        }
+
+        public void undo(WayRefTableModel model) {
+            RowRanges ranges = new RowRanges(1);
+            ranges.add(index, index + inserted.length - 1);
+            model.removeRanges(ranges);
+        }
+
+        public void redo(WayRefTableModel model) {
+            RowRanges ranges = new RowRanges(1);
+            ranges.add(index, index + inserted.length - 1);
+            model.insertRanges(ranges, inserted);
+        }
+
+        public int getWeight() {
+            return inserted.length + 1;
+        }
+    }
+
+    /**
+     * <code>inserted</code> were inserted so that they ended up in the rows in
+     * <code>ranges</code>
+     */
+    static class InsertRangesEdit implements Edit {
+        private final RowRanges ranges;
+        private final Node[] inserted;
+
+        InsertRangesEdit(RowRanges ranges, Node[] inserted) {
+            this.ranges = ranges;
+            this.inserted = inserted;
+        }
+
+        public void undo(WayRefTableModel model) {
+            model.removeRanges(ranges);
+        }
+
+        public void redo(WayRefTableModel model) {
+            model.insertRanges(ranges, inserted);
+        }
+
+        public int getWeight() {
+            return inserted.length + 2 * ranges.size();
+        }
+    }
+
+    /**
+     * The order of the rows in <code>ranges</code> was reversed. Reversing is its own
+     * inverse.
+     */
+    static class ReverseEdit implements Edit {
+        private final RowRanges ranges;
+
+        ReverseEdit(RowRanges ranges) {
+            this.ranges = ranges;
+        }
+
+        public void undo(WayRefTableModel model) {
+            model.reverseRanges(ranges);
+        }
+
+        public void redo(WayRefTableModel model) {
+            model.reverseRanges(ranges);
+        }
+
+        public int getWeight() {
+            return 2 * ranges.size();
+        }
+    }
+}
@@ -3,4 +3,10 @@ package com.yellowbkpk.geo.waydetails.editor;
 
 public interface INodeRefModelListener {
     void makeMemberVisible(int index);
+
+    /**
+     * Invoked when the undo/redo history of the model was dropped because the way
+     * changed in the dataset
+     */
+    void historyCleared();
 }
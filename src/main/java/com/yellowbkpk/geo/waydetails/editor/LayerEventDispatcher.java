@@ -0,0 +1,312 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+import org.openstreetmap.josm.data.SelectionChangedListener;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListener;
+import org.openstreetmap.josm.data.osm.event.NodeMovedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesAddedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesRemovedEvent;
+import org.openstreetmap.josm.data.osm.event.RelationMembersChangedEvent;
+import org.openstreetmap.josm.data.osm.event.TagsChangedEvent;
+import org.openstreetmap.josm.data.osm.event.WayNodesChangedEvent;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+
+/**
+ * Listens to the dataset of one {@link OsmDataLayer} and to the selection on behalf
+ * of all {@link WayRefTableModel}s open for that layer, so that every event is
+ * received once per layer instead of once per model.
+ *
+ * Events about a node or a way are only routed to the models which contain that
+ * node or edit that way. The dispatcher keeps an index from the unique ids of the
+ * nodes and ways to the models; it is rebuilt lazily on the EDT after the nodes of a
+ * model were inserted, removed or reloaded. Moving nodes within a model doesn't
+ * change which nodes it contains and keeps the index. The models pass every event
+ * on to their {@link DataSetEventCoalescer}, which delivers it on the EDT.
+ *
+ * Data and selection changes are passed on to every model.
+ *
+ * Models are held through weak references. A model which is collected without
+ * having been unregistered is dropped, and the dispatcher stops listening once no
+ * model is left, so a leaked editor can't keep the dispatcher busy.
+ */
+public class LayerEventDispatcher implements DataSetListener, SelectionChangedListener, TableModelListener {
+
+    private static final Map<OsmDataLayer, LayerEventDispatcher> dispatchers = new HashMap<OsmDataLayer, LayerEventDispatcher>();
+
+    /**
+     * Registers <code>model</code> with the dispatcher of its layer. The dispatcher
+     * starts listening with its first model.
+     */
+    public static void register(WayRefTableModel model) {
+        LayerEventDispatcher dispatcher;
+        synchronized (dispatchers) {
+            dispatcher = dispatchers.get(model.getLayer());
+            if (dispatcher == null) {
+                dispatcher = new LayerEventDispatcher(model.getLayer());
+                dispatchers.put(model.getLayer(), dispatcher);
+                dispatcher.listen();
+            }
+        }
+        dispatcher.add(model);
+    }
+
+    /**
+     * Unregisters <code>model</code>. The dispatcher of the layer stops listening
+     * when its last model is gone.
+     */
+    public static void unregister(WayRefTableModel model) {
+        synchronized (dispatchers) {
+            LayerEventDispatcher dispatcher = dispatchers.get(model.getLayer());
+            if (dispatcher == null)
+                return;
+            if (dispatcher.remove(model) == 0) {
+                dispatchers.remove(dispatcher.layer);
+                dispatcher.unlisten();
+            }
+        }
+    }
+
+    /**
+     * Stops <code>dispatcher</code> if all its models were collected
+     */
+    private static void releaseIfEmpty(LayerEventDispatcher dispatcher) {
+        synchronized (dispatchers) {
+            if (dispatchers.get(dispatcher.layer) == dispatcher && dispatcher.expunge() == 0) {
+                dispatchers.remove(dispatcher.layer);
+                dispatcher.unlisten();
+            }
+        }
+    }
+
+    /**
+     * Replies the number of models registered with any dispatcher which weren't
+     * collected yet. For diagnostics: with no editor open this should drop to 0.
+     */
+    public static int getLiveModelCount() {
+        List<LayerEventDispatcher> all;
+        synchronized (dispatchers) {
+            all = new ArrayList<LayerEventDispatcher>(dispatchers.values());
+        }
+        int count = 0;
+        for (LayerEventDispatcher dispatcher : all) {
+            count += dispatcher.expunge();
+        }
+        return count;
+    }
+
+    private final OsmDataLayer layer;
+    private final List<WeakReference<WayRefTableModel>> models = new ArrayList<WeakReference<WayRefTableModel>>();
+
+    /* unique ids of the nodes and ways to the index of the models containing them */
+    private final LongIntMultiMap nodeIndex = new LongIntMultiMap();
+    private final LongIntMultiMap wayIndex = new LongIntMultiMap();
+    private boolean indexValid;
+
+    protected LayerEventDispatcher(OsmDataLayer layer) {
+        this.layer = layer;
+    }
+
+    protected void listen() {
+        DataSet.addSelectionListener(this);
+        layer.data.addDataSetListener(this);
+    }
+
+    protected void unlisten() {
+        DataSet.removeSelectionListener(this);
+        layer.data.removeDataSetListener(this);
+    }
+
+    private int indexOf(WayRefTableModel model) {
+        for (int m = 0; m < models.size(); m++) {
+            if (models.get(m).get() == model)
+                return m;
+        }
+        return -1;
+    }
+
+    protected synchronized void add(WayRefTableModel model) {
+        if (indexOf(model) >= 0)
+            return;
+        models.add(new WeakReference<WayRefTableModel>(model));
+        model.addTableModelListener(this);
+        indexValid = false;
+    }
+
+    /**
+     * Removes <code>model</code> and replies the number of models left
+     */
+    protected synchronized int remove(WayRefTableModel model) {
+        int m = indexOf(model);
+        if (m >= 0) {
+            models.remove(m);
+            model.removeTableModelListener(this);
+            indexValid = false;
+        }
+        return expunge();
+    }
+
+    /**
+     * Drops the references to collected models and replies the number of models left
+     */
+    protected synchronized int expunge() {
+        for (int m = models.size() - 1; m >= 0; m--) {
+            if (models.get(m).get() == null) {
+                models.remove(m);
+                indexValid = false;
+            }
+        }
+        return models.size();
+    }
+
+    /**
+     * Invalidates the index if the set of nodes of a model changed
+     */
+    public synchronized void tableChanged(TableModelEvent e) {
+        if (e.getType() != TableModelEvent.UPDATE || e.getLastRow() == Integer.MAX_VALUE) {
+            indexValid = false;
+        }
+    }
+
+    private void ensureIndexValid() {
+        if (indexValid)
+            return;
+        expunge();
+        nodeIndex.clear();
+        wayIndex.clear();
+        for (int m = 0; m < models.size(); m++) {
+            WayRefTableModel model = models.get(m).get();
+            if (model == null) {
+                continue;
+            }
+            wayIndex.put(model.getWay().getUniqueId(), m);
+            for (int row = 0; row < model.getRowCount(); row++) {
+                long id = model.getNodeId(row);
+                // values are prepended, so a node already indexed for this model
+                // is the first entry of its key
+                int first = nodeIndex.firstEntry(id);
+                if (first == LongIntMultiMap.NONE || nodeIndex.valueAt(first) != m) {
+                    nodeIndex.put(id, m);
+                }
+            }
+        }
+        indexValid = true;
+    }
+
+    /**
+     * Replies the models indexed under <code>id</code>. Events are delivered outside
+     * the lock, because the models fire table events while handling them.
+     *
+     * Building the index reads the nodes of the models, which is only safe on the
+     * EDT. Off the EDT a stale index isn't rebuilt and all models get the event;
+     * their {@link DataSetEventCoalescer}s drop what doesn't concern them on the EDT.
+     */
+    private WayRefTableModel[] getModels(LongIntMultiMap index, long id) {
+        synchronized (this) {
+            if (indexValid || SwingUtilities.isEventDispatchThread())
+                return lookup(index, id);
+        }
+        return getModels();
+    }
+
+    private synchronized WayRefTableModel[] lookup(LongIntMultiMap index, long id) {
+        ensureIndexValid();
+        int count = 0;
+        for (int e = index.firstEntry(id); e != LongIntMultiMap.NONE; e = index.nextEntry(e)) {
+            count++;
+        }
+        WayRefTableModel[] targets = new WayRefTableModel[count];
+        count = 0;
+        for (int e = index.firstEntry(id); e != LongIntMultiMap.NONE; e = index.nextEntry(e)) {
+            WayRefTableModel model = models.get(index.valueAt(e)).get();
+            if (model != null) {
+                targets[count++] = model;
+            }
+        }
+        if (count < targets.length) {
+            WayRefTableModel[] live = new WayRefTableModel[count];
+            System.arraycopy(targets, 0, live, 0, count);
+            targets = live;
+        }
+        return targets;
+    }
+
+    /**
+     * Replies all models which weren't collected. Releases the dispatcher if there
+     * are none left.
+     */
+    private WayRefTableModel[] getModels() {
+        List<WayRefTableModel> live = new ArrayList<WayRefTableModel>();
+        synchronized (this) {
+            for (WeakReference<WayRefTableModel> ref : models) {
+                WayRefTableModel model = ref.get();
+                if (model != null) {
+                    live.add(model);
+                }
+            }
+        }
+        if (live.isEmpty()) {
+            releaseIfEmpty(this);
+        }
+        return live.toArray(new WayRefTableModel[live.size()]);
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* Interface SelectionChangedListener                                          */
+    /* --------------------------------------------------------------------------- */
+    public void selectionChanged(Collection<? extends OsmPrimitive> newSelection) {
+        for (WayRefTableModel model : getModels()) {
+            model.selectionChanged(newSelection);
+        }
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* Interface DataSetListener                                                   */
+    /* --------------------------------------------------------------------------- */
+    public void dataChanged(DataChangedEvent event) {
+        for (WayRefTableModel model : getModels()) {
+            model.dataChanged(event);
+        }
+    }
+
+    public void tagsChanged(TagsChangedEvent event) {
+        OsmPrimitive primitive = event.getPrimitive();
+        if (!(primitive instanceof Node))
+            return;
+        for (WayRefTableModel model : getModels(nodeIndex, primitive.getUniqueId())) {
+            model.tagsChanged(event);
+        }
+    }
+
+    public void nodeMoved(NodeMovedEvent event) {
+        for (WayRefTableModel model : getModels(nodeIndex, event.getNode().getUniqueId())) {
+            model.nodeMoved(event);
+        }
+    }
+
+    public void wayNodesChanged(WayNodesChangedEvent event) {
+        for (WayRefTableModel model : getModels(wayIndex, event.getChangedWay().getUniqueId())) {
+            model.wayNodesChanged(event);
+        }
+    }
+
+    public void primtivesAdded(PrimitivesAddedEvent event) {/* ignore */}
+    public void primtivesRemoved(PrimitivesRemovedEvent event) {/* ignore */}
+    public void relationMembersChanged(RelationMembersChangedEvent event) {/* ignore */}
+    public void otherDatasetChange(AbstractDatasetChangedEvent event) {/* ignore */}
+}
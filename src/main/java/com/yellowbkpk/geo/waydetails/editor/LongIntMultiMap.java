@@ -0,0 +1,184 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive <code>long</code> keys to one or more primitive
+ * <code>int</code> values, i.e. from node ids to the rows they occur in.
+ *
+ * Keys are kept in an open addressing table, the values of a key in a singly linked
+ * chain of entries. Neither lookups nor {@link #clear()} allocate, so the map can be
+ * rebuilt over and over again.
+ *
+ * Values are chained in reverse insertion order: put them in descending order to get
+ * them back in ascending order.
+ */
+public class LongIntMultiMap {
+
+    /** marks an empty slot or the end of a chain */
+    public static final int NONE = -1;
+
+    private long[] keys;
+    private int[] heads;
+    private int mask;
+    private int keyCount;
+
+    private int[] values;
+    private int[] next;
+    private int size;
+
+    public LongIntMultiMap() {
+        this(16);
+    }
+
+    /**
+     * constructor
+     *
+     * @param expected the expected number of values
+     */
+    public LongIntMultiMap(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        heads = new int[capacity];
+        Arrays.fill(heads, NONE);
+        mask = capacity - 1;
+        values = new int[Math.max(expected, 16)];
+        next = new int[values.length];
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private int slotOf(long key) {
+        int slot = hash(key) & mask;
+        while (heads[slot] != NONE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Removes all keys and values. Keeps the allocated capacity.
+     */
+    public void clear() {
+        if (keyCount > 0) {
+            Arrays.fill(heads, NONE);
+        }
+        keyCount = 0;
+        size = 0;
+    }
+
+    /**
+     * Adds <code>value</code> to the values of <code>key</code>.
+     */
+    public void put(long key, int value) {
+        if ((keyCount + 1) * 2 > heads.length) {
+            rehash(heads.length * 2);
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+            next = Arrays.copyOf(next, size * 2);
+        }
+        int slot = slotOf(key);
+        if (heads[slot] == NONE) {
+            keys[slot] = key;
+            keyCount++;
+        }
+        values[size] = value;
+        next[size] = heads[slot];
+        heads[slot] = size++;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldHeads = heads;
+        keys = new long[capacity];
+        heads = new int[capacity];
+        Arrays.fill(heads, NONE);
+        mask = capacity - 1;
+        for (int i = 0; i < oldHeads.length; i++) {
+            if (oldHeads[i] != NONE) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                heads[slot] = oldHeads[i];
+            }
+        }
+    }
+
+    /**
+     * Replies the first entry of <code>key</code>, or {@link #NONE}. Walk the chain
+     * with {@link #nextEntry(int)} and read it with {@link #valueAt(int)}.
+     */
+    public int firstEntry(long key) {
+        return heads[slotOf(key)];
+    }
+
+    public int nextEntry(int entry) {
+        return next[entry];
+    }
+
+    public int valueAt(int entry) {
+        return values[entry];
+    }
+
+    /**
+     * Replies the first value of <code>key</code>, or {@link #NONE} if there is none.
+     */
+    public int get(long key) {
+        int entry = firstEntry(key);
+        return entry == NONE ? NONE : values[entry];
+    }
+
+    public boolean containsKey(long key) {
+        return firstEntry(key) != NONE;
+    }
+
+    /**
+     * Replies the number of values of <code>key</code>
+     */
+    public int count(long key) {
+        int n = 0;
+        for (int e = firstEntry(key); e != NONE; e = next[e]) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Copies the values of <code>key</code> to <code>dst</code>, as many as fit.
+     *
+     * @return the number of values of <code>key</code>
+     */
+    public int get(long key, int[] dst) {
+        int n = 0;
+        for (int e = firstEntry(key); e != NONE; e = next[e]) {
+            if (n < dst.length) {
+                dst[n] = values[e];
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Replies the number of distinct keys
+     */
+    public int keyCount() {
+        return keyCount;
+    }
+
+    /**
+     * Replies the total number of values
+     */
+    public int size() {
+        return size;
+    }
+}
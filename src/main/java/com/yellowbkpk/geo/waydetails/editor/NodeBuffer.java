@@ -0,0 +1,351 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openstreetmap.josm.data.osm.Node;
+
+/**
+ * A gap buffer of nodes and their unique ids, used by {@link WayRefTableModel} to
+ * edit the nodes of a way without copying the whole node list on every edit.
+ *
+ * Random access is O(1). Inserting and removing is amortized O(1) plus the cost of
+ * moving the gap to the edit position, which is a single block copy of the rows in
+ * between. Edits close to each other, like the single-row moves and removals of the
+ * editor, therefore cost next to nothing even on ways with 100k nodes.
+ */
+public class NodeBuffer {
+
+    private Node[] nodes;
+    private long[] ids;
+    private int gapStart;
+    private int gapEnd;
+
+    public NodeBuffer() {
+        this(16);
+    }
+
+    public NodeBuffer(int capacity) {
+        capacity = Math.max(capacity, 16);
+        nodes = new Node[capacity];
+        ids = new long[capacity];
+        gapStart = 0;
+        gapEnd = capacity;
+    }
+
+    /**
+     * Replaces the content of this buffer with <code>content</code>
+     */
+    public void setAll(List<Node> content) {
+        int count = content.size();
+        if (nodes.length < count + 16) {
+            nodes = new Node[count + Math.max(16, count / 8)];
+            ids = new long[nodes.length];
+        } else {
+            Arrays.fill(nodes, null);
+        }
+        for (int i = 0; i < count; i++) {
+            Node n = content.get(i);
+            nodes[i] = n;
+            ids[i] = n.getUniqueId();
+        }
+        gapStart = count;
+        gapEnd = nodes.length;
+    }
+
+    public int size() {
+        return nodes.length - (gapEnd - gapStart);
+    }
+
+    private int physical(int index) {
+        return index < gapStart ? index : index + gapEnd - gapStart;
+    }
+
+    public Node get(int index) {
+        return nodes[physical(index)];
+    }
+
+    /**
+     * Replies the unique id of the node at <code>index</code>
+     */
+    public long getId(int index) {
+        return ids[physical(index)];
+    }
+
+    public void set(int index, Node node) {
+        int p = physical(index);
+        nodes[p] = node;
+        ids[p] = node.getUniqueId();
+    }
+
+    public void swap(int i, int j) {
+        int pi = physical(i);
+        int pj = physical(j);
+        Node n = nodes[pi];
+        nodes[pi] = nodes[pj];
+        nodes[pj] = n;
+        long id = ids[pi];
+        ids[pi] = ids[pj];
+        ids[pj] = id;
+    }
+
+    /**
+     * Moves the gap so that it starts at <code>index</code>
+     */
+    private void moveGap(int index) {
+        if (index < gapStart) {
+            int len = gapStart - index;
+            System.arraycopy(nodes, index, nodes, gapEnd - len, len);
+            System.arraycopy(ids, index, ids, gapEnd - len, len);
+            Arrays.fill(nodes, index, Math.min(gapStart, gapEnd - len), null);
+            gapStart -= len;
+            gapEnd -= len;
+        } else if (index > gapStart) {
+            int len = index - gapStart;
+            System.arraycopy(nodes, gapEnd, nodes, gapStart, len);
+            System.arraycopy(ids, gapEnd, ids, gapStart, len);
+            Arrays.fill(nodes, Math.max(gapEnd, gapStart + len), gapEnd + len, null);
+            gapStart += len;
+            gapEnd += len;
+        }
+    }
+
+    private void ensureGap(int len) {
+        if (gapEnd - gapStart >= len)
+            return;
+        int size = size();
+        int capacity = Math.max(nodes.length * 3 / 2, size + len + 16);
+        int tail = nodes.length - gapEnd;
+        Node[] newNodes = new Node[capacity];
+        long[] newIds = new long[capacity];
+        System.arraycopy(nodes, 0, newNodes, 0, gapStart);
+        System.arraycopy(ids, 0, newIds, 0, gapStart);
+        System.arraycopy(nodes, gapEnd, newNodes, capacity - tail, tail);
+        System.arraycopy(ids, gapEnd, newIds, capacity - tail, tail);
+        nodes = newNodes;
+        ids = newIds;
+        gapEnd = capacity - tail;
+    }
+
+    /**
+     * Inserts <code>len</code> nodes of <code>src</code>, starting at
+     * <code>offset</code>, before <code>index</code>
+     */
+    public void insert(int index, Node[] src, int offset, int len) {
+        ensureGap(len);
+        moveGap(index);
+        for (int i = 0; i < len; i++) {
+            Node n = src[offset + i];
+            nodes[gapStart] = n;
+            ids[gapStart] = n.getUniqueId();
+            gapStart++;
+        }
+    }
+
+    public void insert(int index, List<Node> src) {
+        ensureGap(src.size());
+        moveGap(index);
+        for (Node n : src) {
+            nodes[gapStart] = n;
+            ids[gapStart] = n.getUniqueId();
+            gapStart++;
+        }
+    }
+
+    /**
+     * Removes the nodes from <code>from</code> to <code>to</code>, both inclusive
+     */
+    public void remove(int from, int to) {
+        moveGap(to + 1);
+        int len = to - from + 1;
+        gapStart -= len;
+        Arrays.fill(nodes, gapStart, gapStart + len, null);
+    }
+
+    /**
+     * Inserts the nodes of <code>src</code> so that they end up in the rows in
+     * <code>ranges</code>, in one pass over the buffer. Cheaper than inserting
+     * range by range when the ranges are spread over the buffer.
+     */
+    public void insertRanges(RowRanges ranges, Node[] src) {
+        int size = size();
+        int count = ranges.rowCount();
+        Node[] newNodes = new Node[size + count + Math.max(16, (size + count) / 8)];
+        long[] newIds = new long[newNodes.length];
+        int read = 0;
+        int write = 0;
+        int offset = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            for (; write < ranges.start(i); read++, write++) {
+                int p = physical(read);
+                newNodes[write] = nodes[p];
+                newIds[write] = ids[p];
+            }
+            for (; write <= ranges.end(i); write++) {
+                Node n = src[offset++];
+                newNodes[write] = n;
+                newIds[write] = n.getUniqueId();
+            }
+        }
+        for (; read < size; read++, write++) {
+            int p = physical(read);
+            newNodes[write] = nodes[p];
+            newIds[write] = ids[p];
+        }
+        nodes = newNodes;
+        ids = newIds;
+        gapStart = write;
+        gapEnd = nodes.length;
+    }
+
+    /**
+     * Removes the nodes in the rows in <code>ranges</code>, in one pass over the
+     * buffer
+     */
+    public void removeRanges(RowRanges ranges) {
+        int size = size();
+        int count = size - ranges.rowCount();
+        Node[] newNodes = new Node[count + Math.max(16, count / 8)];
+        long[] newIds = new long[newNodes.length];
+        int write = 0;
+        int read = 0;
+        for (int i = 0; i <= ranges.size(); i++) {
+            int end = i < ranges.size() ? ranges.start(i) : size;
+            for (; read < end; read++, write++) {
+                int p = physical(read);
+                newNodes[write] = nodes[p];
+                newIds[write] = ids[p];
+            }
+            if (i < ranges.size()) {
+                read = ranges.end(i) + 1;
+            }
+        }
+        nodes = newNodes;
+        ids = newIds;
+        gapStart = write;
+        gapEnd = nodes.length;
+    }
+
+    /**
+     * Copies the nodes from <code>from</code> to <code>to</code>, both inclusive,
+     * to <code>dst</code>
+     */
+    public void copyNodes(int from, int to, Node[] dst, int offset) {
+        for (int i = from; i <= to; i++) {
+            dst[offset++] = get(i);
+        }
+    }
+
+    /**
+     * Moves the block of <code>len</code> nodes starting at <code>from</code> so that
+     * it starts at <code>to</code> afterwards. The nodes in between shift by
+     * <code>len</code> rows into the vacated space.
+     */
+    public void moveBlock(int from, int len, int to) {
+        if (len <= 0 || from == to)
+            return;
+        Node[] block = new Node[len];
+        copyNodes(from, from + len - 1, block, 0);
+        remove(from, from + len - 1);
+        insert(to, block, 0, len);
+    }
+
+    /**
+     * Moves the nodes in the rows in <code>ranges</code>, in their order, into one
+     * block which starts at row <code>to</code> afterwards. Only the rows between
+     * the moved rows and the block are rewritten, in one pass.
+     */
+    public void gather(RowRanges ranges, int to) {
+        int count = ranges.rowCount();
+        int lo = Math.min(ranges.first(), to);
+        int hi = Math.max(ranges.last(), to + count - 1);
+        Node[] span = new Node[hi - lo + 1];
+        copyNodes(lo, hi, span, 0);
+        int moved = to;
+        int kept = lo;
+        int range = 0;
+        for (int i = 0; i < span.length; i++) {
+            int row = lo + i;
+            while (range < ranges.size() && ranges.end(range) < row) {
+                range++;
+            }
+            if (range < ranges.size() && ranges.start(range) <= row) {
+                set(moved++, span[i]);
+            } else {
+                if (kept == to) {
+                    kept += count;
+                }
+                set(kept++, span[i]);
+            }
+        }
+    }
+
+    /**
+     * The inverse of {@link #gather(RowRanges, int)}: moves the block of nodes at
+     * row <code>from</code> back into the rows in <code>ranges</code>
+     */
+    public void scatter(int from, RowRanges ranges) {
+        int count = ranges.rowCount();
+        int lo = Math.min(ranges.first(), from);
+        int hi = Math.max(ranges.last(), from + count - 1);
+        Node[] span = new Node[hi - lo + 1];
+        copyNodes(lo, hi, span, 0);
+        int moved = from - lo;
+        int kept = 0;
+        int range = 0;
+        for (int row = lo; row <= hi; row++) {
+            while (range < ranges.size() && ranges.end(range) < row) {
+                range++;
+            }
+            if (range < ranges.size() && ranges.start(range) <= row) {
+                set(row, span[moved++]);
+            } else {
+                if (kept == from - lo) {
+                    kept += count;
+                }
+                set(row, span[kept++]);
+            }
+        }
+    }
+
+    /**
+     * Reverses the order of the nodes from <code>from</code> to <code>to</code>,
+     * both inclusive
+     */
+    public void reverse(int from, int to) {
+        for (int i = from, j = to; i < j; i++, j--) {
+            swap(i, j);
+        }
+    }
+
+    /**
+     * Replies the nodes in this buffer as a new list
+     */
+    public List<Node> toList() {
+        int size = size();
+        ArrayList<Node> ret = new ArrayList<Node>(size);
+        for (int i = 0; i < gapStart; i++) {
+            ret.add(nodes[i]);
+        }
+        for (int i = gapEnd; i < nodes.length; i++) {
+            ret.add(nodes[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * Replies true if this buffer contains the nodes in <code>other</code>, in the
+     * same order
+     */
+    public boolean contentEquals(List<Node> other) {
+        if (other.size() != size())
+            return false;
+        for (int i = 0; i < other.size(); i++) {
+            if (other.get(i) != get(i))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,53 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+/**
+ * Caches the labels of the nodes displayed in a {@link WayRefTable}, so that
+ * repainting the visible rows while scrolling doesn't format a new string per cell.
+ *
+ * The translated pattern is resolved once. Labels are kept in a direct mapped
+ * cache: a label evicts the one whose node id hashes to the same slot, which bounds
+ * the cache to {@link #CAPACITY} labels without any bookkeeping. On a miss the label
+ * is built in a reused buffer, so a miss costs exactly one string.
+ */
+public class NodeLabelCache {
+
+    public static final int CAPACITY = 4096;
+
+    private final String prefix;
+    private final String suffix;
+
+    private final long[] ids = new long[CAPACITY];
+    private final String[] labels = new String[CAPACITY];
+    private final StringBuilder buffer = new StringBuilder(32);
+
+    public NodeLabelCache() {
+        // format the placeholder itself to get the translated pattern around it
+        String pattern = tr("Node {0}", "{0}");
+        int idx = pattern.indexOf("{0}");
+        if (idx < 0) {
+            prefix = pattern + " ";
+            suffix = "";
+        } else {
+            prefix = pattern.substring(0, idx);
+            suffix = pattern.substring(idx + 3);
+        }
+    }
+
+    /**
+     * Replies the label of the node with the id <code>nodeId</code>
+     */
+    public String getLabel(long nodeId) {
+        int slot = (int) (nodeId ^ (nodeId >>> 32)) * 0x9E3779B9 >>> 20;
+        String label = labels[slot];
+        if (label != null && ids[slot] == nodeId)
+            return label;
+        buffer.setLength(0);
+        label = buffer.append(prefix).append(nodeId).append(suffix).toString();
+        ids[slot] = nodeId;
+        labels[slot] = label;
+        return label;
+    }
+}
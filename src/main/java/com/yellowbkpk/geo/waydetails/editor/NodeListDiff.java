@@ -0,0 +1,268 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Computes a minimal edit script between two sequences of node ids, using Myers'
+ * O(ND) algorithm with the linear space "middle snake" refinement: the sequences
+ * are split at the middle snake of an optimal path and both halves are diffed
+ * recursively, so only two diagonal vectors are needed at any time.
+ *
+ * Common prefixes and suffixes are stripped before each bisection. To bound the
+ * running time, a bisection gives up after {@link #DEFAULT_MAX_COST} differences.
+ * Its part is then anchored on the ids which occur exactly once in both sequences,
+ * as in patience diff: the longest run of them in the same order is kept, and the
+ * gaps between them are diffed on their own. Ids of nodes are unique but for
+ * closing and repeated nodes, so the script stays about as long as the number of
+ * changes, even if these are scattered over the whole way. Only a part without
+ * such ids (i.e. a reversed way, which only keeps one of them) is replaced as a
+ * whole. The script is still correct, just not minimal for such parts.
+ *
+ * The result is reported as the set of positions deleted from the old sequence
+ * and the set of positions inserted into the new one.
+ */
+public class NodeListDiff {
+
+    public static final int DEFAULT_MAX_COST = 1024;
+
+    private final long[] a;
+    private final long[] b;
+    private final int maxCost;
+
+    private final BitSet deleted;
+    private final BitSet inserted;
+
+    private int[] v1 = new int[0];
+    private int[] v2 = new int[0];
+
+    /**
+     * Diffs <code>a</code> against <code>b</code>
+     *
+     * @param a the old sequence
+     * @param b the new sequence
+     */
+    public NodeListDiff(long[] a, long[] b) {
+        this(a, a.length, b, b.length, DEFAULT_MAX_COST);
+    }
+
+    /**
+     * Diffs the first <code>aLength</code> ids of <code>a</code> against the first
+     * <code>bLength</code> ids of <code>b</code>
+     *
+     * @param maxCost the number of differences after which a bisection falls back
+     *        to anchoring on unique ids
+     */
+    public NodeListDiff(long[] a, int aLength, long[] b, int bLength, int maxCost) {
+        this.a = a;
+        this.b = b;
+        this.maxCost = Math.max(maxCost, 1);
+        deleted = new BitSet(aLength);
+        inserted = new BitSet(bLength);
+        diff(0, aLength, 0, bLength);
+        v1 = null;
+        v2 = null;
+    }
+
+    /**
+     * Replies the positions in the old sequence which are not in the new one
+     */
+    public BitSet getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Replies the positions in the new sequence which are not in the old one
+     */
+    public BitSet getInserted() {
+        return inserted;
+    }
+
+    private void diff(int aStart, int aEnd, int bStart, int bEnd) {
+        // strip the common prefix and suffix
+        while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+            aStart++;
+            bStart++;
+        }
+        while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+            aEnd--;
+            bEnd--;
+        }
+        if (aStart == aEnd) {
+            inserted.set(bStart, bEnd);
+            return;
+        }
+        if (bStart == bEnd) {
+            deleted.set(aStart, aEnd);
+            return;
+        }
+        bisect(aStart, aEnd, bStart, bEnd);
+    }
+
+    /**
+     * Finds the middle snake of an optimal path from <code>(aStart, bStart)</code>
+     * to <code>(aEnd, bEnd)</code> and diffs the two halves it splits the problem
+     * into.
+     */
+    private void bisect(int aStart, int aEnd, int bStart, int bEnd) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int maxD = Math.min((n + m + 1) / 2, maxCost);
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        if (v1.length < length) {
+            v1 = new int[length];
+            v2 = new int[length];
+        }
+        Arrays.fill(v1, 0, length, -1);
+        Arrays.fill(v2, 0, length, -1);
+        v1[offset + 1] = 0;
+        v2[offset + 1] = 0;
+        int delta = n - m;
+        // if the delta is odd the forward path detects the overlap, else the
+        // reverse path does
+        boolean front = (delta & 1) != 0;
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
+        for (int d = 0; d < maxD; d++) {
+            // walk the forward path one step
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1Offset = offset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1Offset - 1] < v1[k1Offset + 1])) {
+                    x1 = v1[k1Offset + 1];
+                } else {
+                    x1 = v1[k1Offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aStart + x1] == b[bStart + y1]) {
+                    x1++;
+                    y1++;
+                }
+                v1[k1Offset] = x1;
+                if (x1 > n) {
+                    // ran off the right of the graph
+                    k1end += 2;
+                } else if (y1 > m) {
+                    // ran off the bottom of the graph
+                    k1start += 2;
+                } else if (front) {
+                    int k2Offset = offset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < length && v2[k2Offset] != -1) {
+                        // mirror x2 onto the top-left coordinate system
+                        int x2 = n - v2[k2Offset];
+                        if (x1 >= x2) {
+                            split(aStart, aEnd, bStart, bEnd, x1, y1);
+                            return;
+                        }
+                    }
+                }
+            }
+            // walk the reverse path one step
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2Offset = offset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2Offset - 1] < v2[k2Offset + 1])) {
+                    x2 = v2[k2Offset + 1];
+                } else {
+                    x2 = v2[k2Offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aEnd - x2 - 1] == b[bEnd - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2Offset] = x2;
+                if (x2 > n) {
+                    k2end += 2;
+                } else if (y2 > m) {
+                    k2start += 2;
+                } else if (!front) {
+                    int k1Offset = offset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < length && v1[k1Offset] != -1) {
+                        int x1 = v1[k1Offset];
+                        int y1 = offset + x1 - k1Offset;
+                        // mirror x2 onto the top-left coordinate system
+                        x2 = n - x2;
+                        if (x1 >= x2) {
+                            split(aStart, aEnd, bStart, bEnd, x1, y1);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+        // too expensive, or nothing in common
+        anchor(aStart, aEnd, bStart, bEnd);
+    }
+
+    /**
+     * Keeps the longest run of ids which occur exactly once in both parts, in the
+     * same order, and diffs the gaps between them. A part without such ids is
+     * replaced as a whole.
+     */
+    private void anchor(int aStart, int aEnd, int bStart, int bEnd) {
+        LongIntMultiMap inA = new LongIntMultiMap(aEnd - aStart);
+        for (int i = aStart; i < aEnd; i++) {
+            inA.put(a[i], i);
+        }
+        LongIntMultiMap inB = new LongIntMultiMap(bEnd - bStart);
+        for (int j = bStart; j < bEnd; j++) {
+            inB.put(b[j], j);
+        }
+        // the positions of the unique ids, in the order of the old part
+        int[] aPos = new int[aEnd - aStart];
+        int[] bPos = new int[aEnd - aStart];
+        int count = 0;
+        for (int i = aStart; i < aEnd; i++) {
+            if (inA.count(a[i]) == 1 && inB.count(a[i]) == 1) {
+                aPos[count] = i;
+                bPos[count] = inB.get(a[i]);
+                count++;
+            }
+        }
+        // the longest increasing run of the new positions, by patience sorting:
+        // tails[l] is the anchor ending the best run of length l + 1 found so far
+        int[] tails = new int[count];
+        int[] prev = new int[count];
+        int length = 0;
+        for (int k = 0; k < count; k++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (bPos[tails[mid]] < bPos[k]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            prev[k] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = k;
+            if (low == length) {
+                length++;
+            }
+        }
+        if (length == 0) {
+            deleted.set(aStart, aEnd);
+            inserted.set(bStart, bEnd);
+            return;
+        }
+        int nextA = aEnd;
+        int nextB = bEnd;
+        for (int k = tails[length - 1]; k >= 0; k = prev[k]) {
+            diff(aPos[k] + 1, nextA, bPos[k] + 1, nextB);
+            nextA = aPos[k];
+            nextB = bPos[k];
+        }
+        diff(aStart, nextA, bStart, nextB);
+    }
+
+    private void split(int aStart, int aEnd, int bStart, int bEnd, int x, int y) {
+        diff(aStart, aStart + x, bStart, bStart + y);
+        diff(aStart + x, aEnd, bStart + y, bEnd);
+    }
+}
@@ -0,0 +1,238 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+import org.openstreetmap.josm.data.osm.Node;
+
+/**
+ * An index to find the rows of nodes in a {@link WayRefTableModel} by node id or by
+ * tag, without scanning the way.
+ *
+ * The index keeps the ids of the nodes sorted, for exact and prefix matches, and
+ * an inverted index from <code>key</code>, <code>key=value</code> and
+ * <code>=value</code> to the ids of the tagged nodes. It is keyed on node ids, so
+ * moving or removing rows leaves it valid; the rows of the matches are looked up in
+ * the row index of the model. It is only rebuilt, lazily, once nodes were inserted
+ * or tags changed.
+ */
+public class NodeSearchIndex implements TableModelListener {
+
+    private static final long[] NO_IDS = new long[0];
+    private static final int[] NO_ROWS = new int[0];
+
+    private final WayRefTableModel model;
+
+    /** the unique ids of the nodes, sorted and without duplicates */
+    private long[] ids = NO_IDS;
+    /** the sorted unique ids of the nodes with a key, a tag or a value */
+    private final Map<String, long[]> tags = new HashMap<String, long[]>();
+    private boolean valid;
+
+    /** the last query and the rows of its matches, dropped whenever the rows change */
+    private String query;
+    private int[] rows;
+
+    public NodeSearchIndex(WayRefTableModel model) {
+        this.model = model;
+        model.addTableModelListener(this);
+    }
+
+    public void tableChanged(TableModelEvent e) {
+        if (e.getType() == TableModelEvent.UPDATE && e.getColumn() != TableModelEvent.ALL_COLUMNS)
+            // values of other columns, the rows didn't change
+            return;
+        rows = null;
+        if (e.getType() == TableModelEvent.INSERT || e.getLastRow() == Integer.MAX_VALUE) {
+            // new nodes, or the nodes were reloaded
+            valid = false;
+        }
+    }
+
+    /**
+     * Drops the index after the tags of nodes of the way changed
+     */
+    void tagsChanged() {
+        valid = false;
+        rows = null;
+    }
+
+    /**
+     * Builds the index now rather than on the first search
+     */
+    public void build() {
+        if (valid)
+            return;
+        int count = model.getRowCount();
+        long[] all = new long[count];
+        Map<String, IdList> lists = new HashMap<String, IdList>();
+        for (int row = 0; row < count; row++) {
+            long id = model.getNodeId(row);
+            all[row] = id;
+            Node node = model.getReferredPrimitive(row);
+            if (!node.hasKeys()) {
+                continue;
+            }
+            for (String key : node.keySet()) {
+                String value = node.get(key);
+                add(lists, key, id);
+                add(lists, key + "=" + value, id);
+                add(lists, "=" + value, id);
+            }
+        }
+        ids = sortUnique(all, count);
+        tags.clear();
+        for (Map.Entry<String, IdList> entry : lists.entrySet()) {
+            IdList list = entry.getValue();
+            tags.put(entry.getKey(), sortUnique(list.ids, list.size));
+        }
+        valid = true;
+    }
+
+    private static void add(Map<String, IdList> lists, String term, long id) {
+        IdList list = lists.get(term);
+        if (list == null) {
+            list = new IdList();
+            lists.put(term, list);
+        }
+        list.add(id);
+    }
+
+    private static long[] sortUnique(long[] a, int size) {
+        Arrays.sort(a, 0, size);
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (n == 0 || a[i] != a[n - 1]) {
+                a[n++] = a[i];
+            }
+        }
+        return n == a.length ? a : Arrays.copyOf(a, n);
+    }
+
+    /**
+     * Replies the rows of the nodes matching <code>text</code>, which is either a
+     * node id or the start of one, a tag key, <code>key=value</code>, or
+     * <code>=value</code>. A key which no node has is looked up as a value. For ids
+     * the rows of the exact match come first, then the rows of the ids starting with
+     * <code>text</code> in the order of the way; otherwise all rows are in the
+     * order of the way.
+     *
+     * The rows of the last query are kept until the rows change. Don't modify the
+     * returned array.
+     */
+    public int[] find(String text) {
+        text = text.trim();
+        if (rows != null && text.equals(query))
+            return rows;
+        build();
+        query = text;
+        if (text.length() == 0) {
+            rows = NO_ROWS;
+        } else if (text.matches("-?\\d{1,18}")) {
+            rows = findIdRows(text);
+        } else {
+            long[] matches = tags.get(text);
+            if (matches == null && text.indexOf('=') < 0) {
+                matches = tags.get("=" + text);
+            }
+            rows = matches == null ? NO_ROWS : rowsOf(matches, 0, matches.length);
+        }
+        return rows;
+    }
+
+    private int[] findIdRows(String text) {
+        boolean negative = text.charAt(0) == '-';
+        long prefix = Long.parseLong(negative ? text.substring(1) : text);
+        if (!Long.toString(prefix).equals(negative ? text.substring(1) : text))
+            // leading zeros, no id starts with them
+            return NO_ROWS;
+        long exact = negative ? -prefix : prefix;
+        int[] exactRows = NO_ROWS;
+        int exactAt = Arrays.binarySearch(ids, exact);
+        if (exactAt >= 0) {
+            exactRows = rowsOf(ids, exactAt, exactAt + 1);
+        }
+        // the ids starting with the prefix and one more digit, two more digits, ...
+        // are consecutive ranges of the sorted ids
+        IdList longer = new IdList();
+        long lo = prefix;
+        long hi = prefix;
+        while (prefix != 0 && lo <= Long.MAX_VALUE / 10) {
+            lo *= 10;
+            hi = hi > (Long.MAX_VALUE - 9) / 10 ? Long.MAX_VALUE : hi * 10 + 9;
+            int from = negative ? lowerBound(-hi) : lowerBound(lo);
+            int to = negative ? upperBound(-lo) : upperBound(hi);
+            if (from == ids.length && !negative || to == 0 && negative)
+                // all ids are nearer to zero
+                break;
+            for (int i = from; i < to; i++) {
+                longer.add(ids[i]);
+            }
+        }
+        int[] longerRows = rowsOf(longer.ids, 0, longer.size);
+        int[] result = Arrays.copyOf(exactRows, exactRows.length + longerRows.length);
+        System.arraycopy(longerRows, 0, result, exactRows.length, longerRows.length);
+        return result;
+    }
+
+    /** replies the index of the first id &gt;= <code>id</code> */
+    private int lowerBound(long id) {
+        int low = 0;
+        int high = ids.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ids[mid] < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** replies the index of the first id &gt; <code>id</code> */
+    private int upperBound(long id) {
+        return id == Long.MAX_VALUE ? ids.length : lowerBound(id + 1);
+    }
+
+    /**
+     * Replies the rows of the nodes <code>nodeIds[from]</code> to
+     * <code>nodeIds[to - 1]</code>, ascending, looked up in the row index of the
+     * model
+     */
+    private int[] rowsOf(long[] nodeIds, int from, int to) {
+        LongIntMultiMap index = model.getRowIndex();
+        int[] result = new int[to - from];
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            for (int e = index.firstEntry(nodeIds[i]); e != LongIntMultiMap.NONE; e = index.nextEntry(e)) {
+                if (n == result.length) {
+                    result = Arrays.copyOf(result, n + (n >> 1) + 1);
+                }
+                result[n++] = index.valueAt(e);
+            }
+        }
+        if (n != result.length) {
+            result = Arrays.copyOf(result, n);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static class IdList {
+        long[] ids = new long[4];
+        int size;
+
+        void add(long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size << 1);
+            }
+            ids[size++] = id;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Helpers to keep primitive arrays and bit sets aligned with the rows of a
+ * {@link WayRefTableModel} when rows are inserted or removed.
+ */
+final class RowArrays {
+
+    private RowArrays() {
+    }
+
+    /**
+     * Opens a gap of <code>count</code> NaNs at <code>at</code> in the first
+     * <code>newSize - count</code> elements of <code>a</code>. Replies
+     * <code>a</code>, or a larger copy if it is too small.
+     */
+    static double[] open(double[] a, int at, int count, int newSize) {
+        double[] b = a;
+        if (newSize > a.length) {
+            b = new double[Math.max(newSize, a.length + (a.length >> 1))];
+            System.arraycopy(a, 0, b, 0, at);
+        }
+        System.arraycopy(a, at, b, at + count, newSize - count - at);
+        Arrays.fill(b, at, at + count, Double.NaN);
+        return b;
+    }
+
+    /**
+     * Removes the <code>count</code> elements at <code>at</code> from the first
+     * <code>size</code> elements of <code>a</code>
+     */
+    static void close(double[] a, int at, int count, int size) {
+        System.arraycopy(a, at + count, a, at, size - at - count);
+    }
+
+    /**
+     * Shifts the bits from <code>from</code> on by <code>delta</code>. With a
+     * negative <code>delta</code> the bits <code>from</code> to
+     * <code>from - delta - 1</code> are dropped; with a positive one the new bits
+     * are cleared.
+     */
+    static void shift(BitSet bits, int from, int delta) {
+        int start = delta < 0 ? from - delta : from;
+        BitSet tail = bits.get(start, Math.max(start, bits.length()));
+        bits.clear(from, Math.max(from, bits.length()));
+        for (int i = tail.nextSetBit(0); i >= 0; i = tail.nextSetBit(i + 1)) {
+            bits.set(start + delta + i);
+        }
+    }
+
+    static double[] newNaNs(int size) {
+        double[] a = new double[size];
+        Arrays.fill(a, Double.NaN);
+        return a;
+    }
+}
@@ -0,0 +1,238 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.BitSet;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.projection.Projection;
+
+/**
+ * The minimum and maximum eastings and northings over ranges of rows of a
+ * {@link WayRefTableModel}, read from its {@link CoordinateCache}.
+ *
+ * The rows are grouped into blocks of {@link #BLOCK_SIZE} rows, which are the
+ * leaves of a min/max segment tree. The bounds of a range of rows cost the rows of
+ * the two partial blocks at its ends plus a logarithmic number of tree nodes, so
+ * the bounds of a selection of tens of thousands of rows are a few lookups per
+ * selected range rather than a pass over the rows.
+ *
+ * Changed rows only mark their blocks stale; inserted and removed rows mark all
+ * blocks after them, and a change of the projection all blocks. Stale blocks are
+ * read again on the next query. Only to be used on the EDT.
+ */
+public class RowBounds implements TableModelListener {
+
+    public static final int BLOCK_SIZE = 64;
+
+    private final WayRefTableModel model;
+
+    /** the number of leaves of the tree, a power of two; node i has the children 2i and 2i + 1 */
+    private int leaves;
+    private double[] minEast = new double[0];
+    private double[] minNorth = new double[0];
+    private double[] maxEast = new double[0];
+    private double[] maxNorth = new double[0];
+
+    /** stale blocks, and the first block from which on all blocks are stale */
+    private final BitSet stale = new BitSet();
+    private int staleFrom;
+    /** the projection of the bounds */
+    private Projection projection;
+
+    /** incremented whenever coordinates of rows changed */
+    private int changeCount;
+
+    private final double[] easts = new double[BLOCK_SIZE];
+    private final double[] norths = new double[BLOCK_SIZE];
+
+    public RowBounds(WayRefTableModel model) {
+        this.model = model;
+        model.addTableModelListener(this);
+    }
+
+    public void tableChanged(TableModelEvent e) {
+        if (e.getColumn() != TableModelEvent.ALL_COLUMNS)
+            // values of other columns, the coordinates didn't change
+            return;
+        changeCount++;
+        int first = e.getFirstRow();
+        int last = e.getLastRow();
+        if (last == Integer.MAX_VALUE || first == TableModelEvent.HEADER_ROW) {
+            staleFrom = 0;
+        } else if (e.getType() == TableModelEvent.UPDATE) {
+            stale.set(first / BLOCK_SIZE, last / BLOCK_SIZE + 1);
+        } else {
+            // the rows after them shifted
+            staleFrom = Math.min(staleFrom, first / BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Replies a number which changes whenever the coordinates of rows changed, so
+     * that bounds computed earlier can be checked for being up to date
+     */
+    public int getChangeCount() {
+        checkProjection();
+        return changeCount;
+    }
+
+    /**
+     * Marks all blocks stale if the projection changed since they were read
+     */
+    private void checkProjection() {
+        if (projection != Main.proj) {
+            projection = Main.proj;
+            staleFrom = 0;
+            changeCount++;
+        }
+    }
+
+    /**
+     * Stores the bounds of the rows of <code>ranges</code> in <code>bounds</code>,
+     * as minimum easting, minimum northing, maximum easting and maximum northing.
+     * Rows without coordinates are skipped.
+     *
+     * @return false if none of the rows has coordinates
+     */
+    public boolean getBounds(RowRanges ranges, double[] bounds) {
+        validate();
+        bounds[0] = Double.POSITIVE_INFINITY;
+        bounds[1] = Double.POSITIVE_INFINITY;
+        bounds[2] = Double.NEGATIVE_INFINITY;
+        bounds[3] = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < ranges.size(); i++) {
+            int start = ranges.start(i);
+            int end = ranges.end(i);
+            int firstBlock = (start + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            int lastBlock = (end + 1) / BLOCK_SIZE - 1;
+            if (firstBlock > lastBlock) {
+                addRows(start, end, bounds);
+                continue;
+            }
+            addRows(start, firstBlock * BLOCK_SIZE - 1, bounds);
+            addBlocks(firstBlock, lastBlock, bounds);
+            addRows((lastBlock + 1) * BLOCK_SIZE, end, bounds);
+        }
+        return bounds[0] <= bounds[2];
+    }
+
+    private void addRows(int from, int to, double[] bounds) {
+        CoordinateCache coordinates = model.getCoordinates();
+        for (int row = from; row <= to; row++) {
+            double east = coordinates.getEast(row);
+            double north = coordinates.getNorth(row);
+            // comparisons with NaN are false, incomplete nodes drop out
+            if (east < bounds[0]) {
+                bounds[0] = east;
+            }
+            if (north < bounds[1]) {
+                bounds[1] = north;
+            }
+            if (east > bounds[2]) {
+                bounds[2] = east;
+            }
+            if (north > bounds[3]) {
+                bounds[3] = north;
+            }
+        }
+    }
+
+    private void addBlocks(int from, int to, double[] bounds) {
+        int l = from + leaves;
+        int r = to + leaves + 1;
+        while (l < r) {
+            if ((l & 1) != 0) {
+                addNode(l++, bounds);
+            }
+            if ((r & 1) != 0) {
+                addNode(--r, bounds);
+            }
+            l >>= 1;
+            r >>= 1;
+        }
+    }
+
+    private void addNode(int node, double[] bounds) {
+        bounds[0] = Math.min(bounds[0], minEast[node]);
+        bounds[1] = Math.min(bounds[1], minNorth[node]);
+        bounds[2] = Math.max(bounds[2], maxEast[node]);
+        bounds[3] = Math.max(bounds[3], maxNorth[node]);
+    }
+
+    /**
+     * Reads the stale blocks again and updates the tree above them
+     */
+    private void validate() {
+        int rows = model.getRowCount();
+        int blocks = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (blocks > leaves) {
+            leaves = Integer.highestOneBit(blocks);
+            if (leaves < blocks) {
+                leaves <<= 1;
+            }
+            minEast = new double[2 * leaves];
+            minNorth = new double[2 * leaves];
+            maxEast = new double[2 * leaves];
+            maxNorth = new double[2 * leaves];
+            staleFrom = 0;
+        }
+        checkProjection();
+        if (staleFrom >= leaves && stale.isEmpty())
+            return;
+        stale.set(Math.min(staleFrom, leaves), leaves);
+        staleFrom = Integer.MAX_VALUE;
+        // after many changes the whole tree is cheaper to rebuild than the ancestors
+        // of every block
+        boolean rebuild = stale.cardinality() > leaves / 16;
+        CoordinateCache coordinates = model.getCoordinates();
+        for (int block = stale.nextSetBit(0); block >= 0 && block < leaves; block = stale.nextSetBit(block + 1)) {
+            int node = leaves + block;
+            int from = block * BLOCK_SIZE;
+            int count = Math.max(0, Math.min(BLOCK_SIZE, rows - from));
+            double[] bounds = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+            if (count > 0) {
+                coordinates.copyEastNorth(from, from + count - 1, easts, norths);
+                for (int i = 0; i < count; i++) {
+                    if (easts[i] < bounds[0]) {
+                        bounds[0] = easts[i];
+                    }
+                    if (norths[i] < bounds[1]) {
+                        bounds[1] = norths[i];
+                    }
+                    if (easts[i] > bounds[2]) {
+                        bounds[2] = easts[i];
+                    }
+                    if (norths[i] > bounds[3]) {
+                        bounds[3] = norths[i];
+                    }
+                }
+            }
+            minEast[node] = bounds[0];
+            minNorth[node] = bounds[1];
+            maxEast[node] = bounds[2];
+            maxNorth[node] = bounds[3];
+            if (!rebuild) {
+                for (node >>= 1; node > 0; node >>= 1) {
+                    updateNode(node);
+                }
+            }
+        }
+        if (rebuild) {
+            for (int node = leaves - 1; node > 0; node--) {
+                updateNode(node);
+            }
+        }
+        stale.clear();
+    }
+
+    private void updateNode(int node) {
+        minEast[node] = Math.min(minEast[2 * node], minEast[2 * node + 1]);
+        minNorth[node] = Math.min(minNorth[2 * node], minNorth[2 * node + 1]);
+        maxEast[node] = Math.max(maxEast[2 * node], maxEast[2 * node + 1]);
+        maxNorth[node] = Math.max(maxNorth[2 * node], maxNorth[2 * node + 1]);
+    }
+}
@@ -0,0 +1,213 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import javax.swing.ListSelectionModel;
+
+/**
+ * An ascending list of disjoint, non adjacent ranges of rows. Used to represent
+ * the selection of a {@link WayRefTable} as runs instead of single rows, so that
+ * operations on large selections cost O(ranges) rather than O(rows).
+ *
+ * Both ends of a range are inclusive.
+ */
+public class RowRanges {
+
+    private int[] starts;
+    private int[] ends;
+    private int size;
+
+    public RowRanges() {
+        this(4);
+    }
+
+    public RowRanges(int capacity) {
+        starts = new int[Math.max(capacity, 1)];
+        ends = new int[starts.length];
+    }
+
+    /**
+     * Replies the selected ranges of <code>model</code>, limited to
+     * <code>rowCount</code> rows. A {@link RowSelectionModel} is read range by range;
+     * for other models the rows between the minimum and the maximum selection index
+     * are inspected.
+     *
+     * @param model the selection model
+     * @param rowCount the number of rows
+     * @return the selected ranges
+     */
+    public static RowRanges fromSelectionModel(ListSelectionModel model, int rowCount) {
+        if (model instanceof RowSelectionModel)
+            return ((RowSelectionModel) model).getSelectedRanges(rowCount);
+        RowRanges ranges = new RowRanges();
+        int min = Math.max(model.getMinSelectionIndex(), 0);
+        int max = Math.min(model.getMaxSelectionIndex(), rowCount - 1);
+        int start = -1;
+        for (int i = min; i <= max; i++) {
+            if (model.isSelectedIndex(i)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                ranges.add(start, i - 1);
+                start = -1;
+            }
+        }
+        if (start >= 0) {
+            ranges.add(start, max);
+        }
+        return ranges;
+    }
+
+    /**
+     * Replies the runs of set bits in <code>rows</code>
+     */
+    public static RowRanges fromBitSet(BitSet rows) {
+        RowRanges ranges = new RowRanges();
+        for (int start = rows.nextSetBit(0); start >= 0;) {
+            int end = rows.nextClearBit(start);
+            ranges.add(start, end - 1);
+            start = rows.nextSetBit(end);
+        }
+        return ranges;
+    }
+
+    /**
+     * Replies the ranges <code>rows</code> consists of. <code>rows</code> doesn't have
+     * to be sorted and may contain duplicates.
+     */
+    public static RowRanges fromRows(int[] rows) {
+        int[] sorted = rows.clone();
+        Arrays.sort(sorted);
+        RowRanges ranges = new RowRanges();
+        for (int row : sorted) {
+            ranges.add(row, row);
+        }
+        return ranges;
+    }
+
+    /**
+     * Appends the range <code>[start, end]</code>. Ranges have to be added in
+     * ascending order; a range overlapping or adjacent to the last one is merged
+     * with it.
+     */
+    public void add(int start, int end) {
+        if (end < start)
+            return;
+        if (size > 0 && start <= ends[size - 1] + 1) {
+            if (start < starts[size - 1])
+                throw new IllegalArgumentException("ranges have to be added in ascending order");
+            ends[size - 1] = Math.max(ends[size - 1], end);
+            return;
+        }
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Replies the number of ranges
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int start(int range) {
+        return starts[range];
+    }
+
+    public int end(int range) {
+        return ends[range];
+    }
+
+    /**
+     * Replies the first row, or -1 if there are no ranges
+     */
+    public int first() {
+        return size == 0 ? -1 : starts[0];
+    }
+
+    /**
+     * Replies the last row, or -1 if there are no ranges
+     */
+    public int last() {
+        return size == 0 ? -1 : ends[size - 1];
+    }
+
+    /**
+     * Replies the total number of rows in all ranges
+     */
+    public int rowCount() {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            n += ends[i] - starts[i] + 1;
+        }
+        return n;
+    }
+
+    public boolean contains(int row) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] < row) {
+                lo = mid + 1;
+            } else if (starts[mid] > row) {
+                hi = mid - 1;
+            } else
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replies a copy of these ranges, moved by <code>delta</code> rows
+     */
+    public RowRanges shifted(int delta) {
+        RowRanges ret = new RowRanges(size);
+        for (int i = 0; i < size; i++) {
+            ret.starts[i] = starts[i] + delta;
+            ret.ends[i] = ends[i] + delta;
+        }
+        ret.size = size;
+        return ret;
+    }
+
+    /**
+     * Replaces the selection of <code>model</code> with these ranges
+     */
+    public void selectIn(ListSelectionModel model) {
+        model.setValueIsAdjusting(true);
+        model.clearSelection();
+        for (int i = 0; i < size; i++) {
+            model.addSelectionInterval(starts[i], ends[i]);
+        }
+        model.setValueIsAdjusting(false);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(starts[i]).append('-').append(ends[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
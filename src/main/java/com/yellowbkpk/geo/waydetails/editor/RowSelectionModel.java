@@ -0,0 +1,44 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.BitSet;
+
+import javax.swing.DefaultListSelectionModel;
+
+/**
+ * A selection model which mirrors its selection in a {@link BitSet}, so that the
+ * selected ranges can be read by jumping from range to range rather than by asking
+ * for every row between the first and the last selected one.
+ *
+ * Every change of the selection is reported through
+ * {@link #fireValueChanged(int, int, boolean)}; the mirror is updated there, over
+ * the rows of the change only, before any listener is notified.
+ */
+public class RowSelectionModel extends DefaultListSelectionModel {
+    private static final long serialVersionUID = 1L;
+
+    private final BitSet selected = new BitSet();
+
+    @Override
+    protected void fireValueChanged(int firstIndex, int lastIndex, boolean isAdjusting) {
+        if (firstIndex >= 0) {
+            for (int i = firstIndex; i <= lastIndex; i++) {
+                selected.set(i, isSelectedIndex(i));
+            }
+        }
+        super.fireValueChanged(firstIndex, lastIndex, isAdjusting);
+    }
+
+    /**
+     * Replies the selected ranges, limited to <code>rowCount</code> rows
+     */
+    public RowRanges getSelectedRanges(int rowCount) {
+        RowRanges ranges = new RowRanges();
+        for (int start = selected.nextSetBit(0); start >= 0 && start < rowCount;) {
+            int end = Math.min(selected.nextClearBit(start), rowCount);
+            ranges.add(start, end - 1);
+            start = selected.nextSetBit(end);
+        }
+        return ranges;
+    }
+}
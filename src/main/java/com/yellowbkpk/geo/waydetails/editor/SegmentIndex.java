@@ -0,0 +1,538 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.projection.Projection;
+
+/**
+ * A spatial index over the segments of the way in a {@link WayRefTableModel}, in
+ * projected coordinates, to find the segment nearest to a point on the map and the
+ * segments crossing a segment without looking at every node.
+ *
+ * The index is an R-tree packed with the sort-tile-recursive (STR) method. Its
+ * leaves are runs of {@link #LEAF_SIZE} consecutive segments, which are close to
+ * each other on the map anyway, so a leaf can be found from a row without any
+ * lookup. When nodes move or rows are reordered only the boxes of the leaves of
+ * these rows and their ancestors are recomputed. After rows were inserted or
+ * removed, or when the projection changed, the whole tree is packed again, lazily
+ * on the next query.
+ *
+ * Only to be used on the EDT. Crossing segments are looked up in a
+ * {@link Snapshot} of the index, which can be queried from any thread. Snapshots
+ * share the arrays of the index, which copies them before it changes them next.
+ */
+public class SegmentIndex implements TableModelListener {
+
+    public static final int LEAF_SIZE = 16;
+    public static final int NODE_SIZE = 16;
+
+    private final WayRefTableModel model;
+
+    /* the coordinates and the node ids of the rows, copied from the model */
+    private double[] east = new double[0];
+    private double[] north = new double[0];
+    private long[] ids = new long[0];
+    private int rows;
+
+    /*
+     * the boxes of the tree nodes; nodes 0 to leafCount - 1 are the leaves, the
+     * root is the last node
+     */
+    private double[] minX = new double[0];
+    private double[] minY = new double[0];
+    private double[] maxX = new double[0];
+    private double[] maxY = new double[0];
+    private int[] parent = new int[0];
+    /* the children of internal node n are children[childStart[n - leafCount]] to children[childStart[n - leafCount + 1] - 1] */
+    private int[] children = new int[0];
+    private int[] childStart = new int[0];
+    private int leafCount;
+    private int nodeCount;
+
+    private boolean valid;
+    /** the projection of the coordinates */
+    private Projection projection;
+    /** rows whose coordinates changed since the boxes were computed */
+    private final BitSet dirtyRows = new BitSet();
+    /** true if a snapshot refers to the arrays */
+    private boolean shared;
+
+    private int[] stack = new int[64];
+
+    public SegmentIndex(WayRefTableModel model) {
+        this.model = model;
+        model.addTableModelListener(this);
+    }
+
+    /**
+     * Stops tracking the model
+     */
+    public void dispose() {
+        model.removeTableModelListener(this);
+    }
+
+    public void tableChanged(TableModelEvent e) {
+        if (!valid || e.getColumn() != TableModelEvent.ALL_COLUMNS)
+            return;
+        if (e.getType() != TableModelEvent.UPDATE || e.getLastRow() == Integer.MAX_VALUE) {
+            valid = false;
+            return;
+        }
+        dirtyRows.set(Math.max(e.getFirstRow(), 0), Math.min(e.getLastRow() + 1, rows));
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* Building                                                                    */
+    /* --------------------------------------------------------------------------- */
+
+    private void ensureValid() {
+        if (!valid || projection != Main.proj) {
+            build();
+        } else if (!dirtyRows.isEmpty()) {
+            updateDirtyRows();
+        }
+    }
+
+    private void build() {
+        CoordinateCache coordinates = model.getCoordinates();
+        projection = Main.proj;
+        rows = model.getRowCount();
+        if (shared) {
+            // leave the arrays to the snapshots
+            east = new double[0];
+            minX = new double[0];
+            parent = new int[0];
+            shared = false;
+        }
+        if (east.length < rows) {
+            east = new double[rows];
+            north = new double[rows];
+            ids = new long[rows];
+        }
+        if (rows > 0) {
+            coordinates.copyEastNorth(0, rows - 1, east, north);
+        }
+        for (int row = 0; row < rows; row++) {
+            ids[row] = model.getNodeId(row);
+        }
+        int segments = Math.max(rows - 1, 0);
+        leafCount = (segments + LEAF_SIZE - 1) / LEAF_SIZE;
+
+        // upper bound of the number of nodes, each level has at most
+        // a NODE_SIZE-th of the nodes of the level below, plus one
+        int capacity = leafCount + 1;
+        for (int n = leafCount; n > 1; n = (n + NODE_SIZE - 1) / NODE_SIZE) {
+            capacity += (n + NODE_SIZE - 1) / NODE_SIZE + 1;
+        }
+        if (minX.length < capacity) {
+            minX = new double[capacity];
+            minY = new double[capacity];
+            maxX = new double[capacity];
+            maxY = new double[capacity];
+        }
+        if (parent.length < capacity) {
+            parent = new int[capacity];
+            children = new int[capacity];
+            childStart = new int[capacity + 1];
+        }
+        for (int leaf = 0; leaf < leafCount; leaf++) {
+            computeLeaf(leaf);
+        }
+        nodeCount = leafCount;
+        int childCount = 0;
+        childStart[0] = 0;
+
+        // pack level by level: sort the nodes of a level into vertical slices by
+        // the x of their centers, each slice by y, and group runs of NODE_SIZE
+        int[] level = new int[leafCount];
+        for (int i = 0; i < leafCount; i++) {
+            level[i] = i;
+        }
+        int levelSize = leafCount;
+        while (levelSize > 1) {
+            int parents = (levelSize + NODE_SIZE - 1) / NODE_SIZE;
+            int slices = (int) Math.ceil(Math.sqrt(parents));
+            int sliceSize = slices * NODE_SIZE;
+            sortByCenter(level, 0, levelSize, true);
+            for (int s = 0; s < levelSize; s += sliceSize) {
+                sortByCenter(level, s, Math.min(s + sliceSize, levelSize), false);
+            }
+            int[] next = new int[parents];
+            int nextSize = 0;
+            for (int i = 0; i < levelSize; i += NODE_SIZE) {
+                int node = nodeCount++;
+                for (int j = i; j < Math.min(i + NODE_SIZE, levelSize); j++) {
+                    children[childCount++] = level[j];
+                    parent[level[j]] = node;
+                }
+                childStart[node - leafCount + 1] = childCount;
+                computeNode(node);
+                next[nextSize++] = node;
+            }
+            level = next;
+            levelSize = nextSize;
+        }
+        if (nodeCount > 0) {
+            parent[nodeCount - 1] = -1;
+        }
+        dirtyRows.clear();
+        valid = true;
+    }
+
+    /**
+     * Sorts <code>nodes[from..to)</code> by the x (or y) of the centers of their boxes
+     */
+    private void sortByCenter(int[] nodes, int from, int to, boolean byX) {
+        int n = to - from;
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int node = nodes[from + i];
+            double c = byX ? minX[node] + maxX[node] : minY[node] + maxY[node];
+            // sort on the float bits of the center, keeping the node in the low bits
+            keys[i] = ((long) sortableBits((float) c) << 32) | (node & 0xffffffffL);
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < n; i++) {
+            nodes[from + i] = (int) keys[i];
+        }
+    }
+
+    /**
+     * Replies an int which compares like <code>f</code>, NaN last
+     */
+    static int sortableBits(float f) {
+        if (Float.isNaN(f))
+            return Integer.MAX_VALUE;
+        int bits = Float.floatToIntBits(f);
+        // negative floats order the other way round as ints
+        return bits < 0 ? bits ^ Integer.MAX_VALUE : bits;
+    }
+
+    private void computeLeaf(int leaf) {
+        double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+        double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        int last = Math.min((leaf + 1) * LEAF_SIZE, rows - 1);
+        for (int row = leaf * LEAF_SIZE; row <= last; row++) {
+            double x = east[row];
+            double y = north[row];
+            if (Double.isNaN(x) || Double.isNaN(y)) {
+                continue;
+            }
+            x0 = Math.min(x0, x);
+            y0 = Math.min(y0, y);
+            x1 = Math.max(x1, x);
+            y1 = Math.max(y1, y);
+        }
+        minX[leaf] = x0;
+        minY[leaf] = y0;
+        maxX[leaf] = x1;
+        maxY[leaf] = y1;
+    }
+
+    private void computeNode(int node) {
+        double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+        double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        int i = node - leafCount;
+        for (int c = childStart[i]; c < childStart[i + 1]; c++) {
+            int child = children[c];
+            x0 = Math.min(x0, minX[child]);
+            y0 = Math.min(y0, minY[child]);
+            x1 = Math.max(x1, maxX[child]);
+            y1 = Math.max(y1, maxY[child]);
+        }
+        minX[node] = x0;
+        minY[node] = y0;
+        maxX[node] = x1;
+        maxY[node] = y1;
+    }
+
+    /**
+     * Reads the coordinates of the changed rows again and recomputes the boxes of
+     * their leaves and of the ancestors of these leaves
+     */
+    private void updateDirtyRows() {
+        if (shared) {
+            // the structure of the tree stays, the snapshots keep the old boxes
+            east = east.clone();
+            north = north.clone();
+            ids = ids.clone();
+            minX = minX.clone();
+            minY = minY.clone();
+            maxX = maxX.clone();
+            maxY = maxY.clone();
+            shared = false;
+        }
+        CoordinateCache coordinates = model.getCoordinates();
+        BitSet leaves = new BitSet();
+        for (int row = dirtyRows.nextSetBit(0); row >= 0 && row < rows; row = dirtyRows.nextSetBit(row + 1)) {
+            east[row] = coordinates.getEast(row);
+            north[row] = coordinates.getNorth(row);
+            ids[row] = model.getNodeId(row);
+            // a row is the end of the segment before it and the start of the next one
+            if (row > 0) {
+                leaves.set((row - 1) / LEAF_SIZE);
+            }
+            if (row < rows - 1) {
+                leaves.set(row / LEAF_SIZE);
+            }
+        }
+        dirtyRows.clear();
+        BitSet nodes = new BitSet();
+        for (int leaf = leaves.nextSetBit(0); leaf >= 0; leaf = leaves.nextSetBit(leaf + 1)) {
+            computeLeaf(leaf);
+            if (parent[leaf] >= 0 && leafCount > 1) {
+                nodes.set(parent[leaf]);
+            }
+        }
+        // parents have higher ids than their children, so one pass upwards suffices
+        for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+            computeNode(node);
+            if (parent[node] >= 0) {
+                nodes.set(parent[node]);
+            }
+        }
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* Queries                                                                     */
+    /* --------------------------------------------------------------------------- */
+
+    /**
+     * Replies the first row of the segment nearest to the point
+     * (<code>x</code>, <code>y</code>), if it is at most <code>maxDistance</code>
+     * away, or -1. The segment ends at the row after the replied row. All values are
+     * in projected coordinates; <code>maxDistance</code> may be infinite.
+     *
+     * Subtrees are skipped as soon as their box is farther away than the nearest
+     * segment found so far.
+     */
+    public int findNearestSegment(double x, double y, double maxDistance) {
+        ensureValid();
+        if (nodeCount == 0)
+            return -1;
+        double best = maxDistance * maxDistance;
+        int bestRow = -1;
+        int top = 0;
+        stack[top++] = nodeCount - 1;
+        while (top > 0) {
+            int node = stack[--top];
+            if (boxDistanceSq(x, y, node) > best) {
+                continue;
+            }
+            if (node < leafCount) {
+                int last = Math.min((node + 1) * LEAF_SIZE, rows - 1);
+                for (int row = node * LEAF_SIZE; row < last; row++) {
+                    double d = distanceSq(x, y, row);
+                    if (d <= best) {
+                        best = d;
+                        bestRow = row;
+                    }
+                }
+                continue;
+            }
+            int i = node - leafCount;
+            int count = childStart[i + 1] - childStart[i];
+            if (top + count > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + count));
+            }
+            System.arraycopy(children, childStart[i], stack, top, count);
+            top += count;
+        }
+        return bestRow;
+    }
+
+    private double boxDistanceSq(double x, double y, int node) {
+        if (minX[node] > maxX[node])
+            // no coordinates at all
+            return Double.POSITIVE_INFINITY;
+        double dx = x < minX[node] ? minX[node] - x : x > maxX[node] ? x - maxX[node] : 0;
+        double dy = y < minY[node] ? minY[node] - y : y > maxY[node] ? y - maxY[node] : 0;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Replies where the point nearest to (<code>x</code>, <code>y</code>) lies on the
+     * segment from <code>row</code> to <code>row + 1</code>: 0 at its start, 1 at its
+     * end
+     */
+    public double segmentPosition(double x, double y, int row) {
+        ensureValid();
+        double ax = east[row], ay = north[row];
+        double dx = east[row + 1] - ax, dy = north[row + 1] - ay;
+        double len = dx * dx + dy * dy;
+        if (len == 0 || Double.isNaN(len))
+            return 0;
+        return Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / len));
+    }
+
+    /**
+     * Replies the squared distance from (<code>x</code>, <code>y</code>) to the
+     * segment from <code>row</code> to <code>row + 1</code>
+     */
+    public double distanceSq(double x, double y, int row) {
+        double ax = east[row], ay = north[row];
+        double bx = east[row + 1], by = north[row + 1];
+        if (Double.isNaN(ax) || Double.isNaN(ay) || Double.isNaN(bx) || Double.isNaN(by))
+            return Double.POSITIVE_INFINITY;
+        double dx = bx - ax, dy = by - ay;
+        double len = dx * dx + dy * dy;
+        double t = len == 0 ? 0 : ((x - ax) * dx + (y - ay) * dy) / len;
+        t = Math.max(0, Math.min(1, t));
+        double px = ax + t * dx - x, py = ay + t * dy - y;
+        return px * px + py * py;
+    }
+
+    /**
+     * Replies the squared distance from (<code>x</code>, <code>y</code>) to the node
+     * in <code>row</code>
+     */
+    public double nodeDistanceSq(double x, double y, int row) {
+        ensureValid();
+        double dx = east[row] - x, dy = north[row] - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Replies a snapshot of the index, which stays as it is when the rows change
+     */
+    public Snapshot snapshot() {
+        ensureValid();
+        shared = true;
+        return new Snapshot(this);
+    }
+
+    /**
+     * An unmodifiable copy of a {@link SegmentIndex}, to find the segments which
+     * cross a segment off the EDT
+     */
+    public static class Snapshot {
+        private final double[] east;
+        private final double[] north;
+        private final long[] ids;
+        private final int rows;
+        private final double[] minX;
+        private final double[] minY;
+        private final double[] maxX;
+        private final double[] maxY;
+        private final int[] children;
+        private final int[] childStart;
+        private final int leafCount;
+        private final int nodeCount;
+
+        Snapshot(SegmentIndex index) {
+            east = index.east;
+            north = index.north;
+            ids = index.ids;
+            rows = index.rows;
+            minX = index.minX;
+            minY = index.minY;
+            maxX = index.maxX;
+            maxY = index.maxY;
+            children = index.children;
+            childStart = index.childStart;
+            leafCount = index.leafCount;
+            nodeCount = index.nodeCount;
+        }
+
+        /**
+         * Replies the number of rows
+         */
+        public int size() {
+            return rows;
+        }
+
+        /**
+         * Adds the first rows of the segments which cross or touch the segment from
+         * <code>row</code> to <code>row + 1</code> to <code>result</code>, and
+         * replies whether there are any. Segments which share a node with it, and
+         * segments from a node to itself, aren't tested.
+         *
+         * Only the leaves whose boxes overlap the box of the segment are looked at.
+         */
+        public boolean findCrossingSegments(int row, BitSet result) {
+            if (nodeCount == 0 || row < 0 || row >= rows - 1)
+                return false;
+            long a = ids[row];
+            long b = ids[row + 1];
+            if (a == b)
+                return false;
+            double x0 = Math.min(east[row], east[row + 1]);
+            double y0 = Math.min(north[row], north[row + 1]);
+            double x1 = Math.max(east[row], east[row + 1]);
+            double y1 = Math.max(north[row], north[row + 1]);
+            if (!(x0 <= x1 && y0 <= y1))
+                // missing coordinates
+                return false;
+            boolean found = false;
+            int[] stack = new int[64];
+            int top = 0;
+            stack[top++] = nodeCount - 1;
+            while (top > 0) {
+                int node = stack[--top];
+                if (minX[node] > x1 || maxX[node] < x0 || minY[node] > y1 || maxY[node] < y0) {
+                    continue;
+                }
+                if (node < leafCount) {
+                    int last = Math.min((node + 1) * LEAF_SIZE, rows - 1);
+                    for (int t = node * LEAF_SIZE; t < last; t++) {
+                        if (Math.max(east[t], east[t + 1]) < x0 || Math.min(east[t], east[t + 1]) > x1
+                                || Math.max(north[t], north[t + 1]) < y0 || Math.min(north[t], north[t + 1]) > y1) {
+                            // NaN coordinates drop out in intersect()
+                            continue;
+                        }
+                        long c = ids[t];
+                        long d = ids[t + 1];
+                        if (c == d || c == a || c == b || d == a || d == b || !intersect(row, t)) {
+                            continue;
+                        }
+                        result.set(t);
+                        found = true;
+                    }
+                    continue;
+                }
+                int i = node - leafCount;
+                int count = childStart[i + 1] - childStart[i];
+                if (top + count > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + count));
+                }
+                System.arraycopy(children, childStart[i], stack, top, count);
+                top += count;
+            }
+            return found;
+        }
+
+        /**
+         * Replies true if the segments starting at <code>s</code> and <code>t</code>
+         * cross or touch
+         */
+        private boolean intersect(int s, int t) {
+            double o1 = orientation(t, t + 1, s);
+            double o2 = orientation(t, t + 1, s + 1);
+            double o3 = orientation(s, s + 1, t);
+            double o4 = orientation(s, s + 1, t + 1);
+            if ((o1 > 0 && o2 < 0 || o1 < 0 && o2 > 0) && (o3 > 0 && o4 < 0 || o3 < 0 && o4 > 0))
+                return true;
+            return o1 == 0 && within(t, t + 1, s) || o2 == 0 && within(t, t + 1, s + 1)
+                    || o3 == 0 && within(s, s + 1, t) || o4 == 0 && within(s, s + 1, t + 1);
+        }
+
+        private double orientation(int a, int b, int c) {
+            return (east[b] - east[a]) * (north[c] - north[a]) - (north[b] - north[a]) * (east[c] - east[a]);
+        }
+
+        /**
+         * Replies true if <code>c</code>, which is on the line through
+         * <code>a</code> and <code>b</code>, lies between them
+         */
+        private boolean within(int a, int b, int c) {
+            return Math.min(east[a], east[b]) <= east[c] && east[c] <= Math.max(east[a], east[b])
+                    && Math.min(north[a], north[b]) <= north[c] && north[c] <= Math.max(north[a], north[b]);
+        }
+    }
+}
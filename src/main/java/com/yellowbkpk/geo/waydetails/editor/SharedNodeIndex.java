@@ -0,0 +1,141 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+/**
+ * An index from node ids to the (way, row) positions they occur in, shared by the
+ * member tables of all ways open in a {@link WayEditor}.
+ *
+ * The index is built lazily on the first lookup and dropped whenever one of the
+ * tables changes, so switching between ways never rescans anything and finding the
+ * ways which share a node costs a single hash lookup.
+ *
+ * Positions are stored as one int: the row plus the number of rows of all ways
+ * before it. They are decoded with a binary search over these offsets.
+ */
+public class SharedNodeIndex implements TableModelListener {
+
+    private final List<WayRefTableModel> models;
+    private final LongIntMultiMap index = new LongIntMultiMap();
+    private int[] offsets;
+    private boolean valid;
+
+    public SharedNodeIndex(List<WayRefTableModel> models) {
+        this.models = new ArrayList<WayRefTableModel>(models);
+        this.offsets = new int[models.size() + 1];
+        for (WayRefTableModel model : models) {
+            model.addTableModelListener(this);
+        }
+    }
+
+    public void tableChanged(TableModelEvent e) {
+        if (e.getType() == TableModelEvent.UPDATE && e.getColumn() != TableModelEvent.ALL_COLUMNS)
+            // values of other columns, the nodes didn't change
+            return;
+        valid = false;
+    }
+
+    private void ensureValid() {
+        if (valid)
+            return;
+        index.clear();
+        int offset = 0;
+        for (int w = 0; w < models.size(); w++) {
+            offsets[w] = offset;
+            offset += models.get(w).getRowCount();
+        }
+        offsets[models.size()] = offset;
+        // descending, so that the positions of a node come out ascending
+        for (int w = models.size() - 1; w >= 0; w--) {
+            WayRefTableModel model = models.get(w);
+            for (int row = model.getRowCount() - 1; row >= 0; row--) {
+                index.put(model.getNodeId(row), offsets[w] + row);
+            }
+        }
+        valid = true;
+    }
+
+    /**
+     * Replies the first position of the node with the unique id <code>nodeId</code>,
+     * or {@link LongIntMultiMap#NONE}. Walk the positions with
+     * {@link #nextPosition(int)}, read them with {@link #wayAt(int)} and
+     * {@link #rowAt(int)}.
+     */
+    public int firstPosition(long nodeId) {
+        ensureValid();
+        return index.firstEntry(nodeId);
+    }
+
+    public int nextPosition(int position) {
+        return index.nextEntry(position);
+    }
+
+    /**
+     * Replies the index of the way of <code>position</code>, in the order the ways
+     * were passed to the constructor
+     */
+    public int wayAt(int position) {
+        int value = index.valueAt(position);
+        int w = Arrays.binarySearch(offsets, value);
+        if (w < 0) {
+            w = -w - 2;
+        } else {
+            // skip ways without rows, which share their offset with the next way
+            while (w + 1 < offsets.length && offsets[w + 1] == value) {
+                w++;
+            }
+        }
+        return w;
+    }
+
+    /**
+     * Replies the row of <code>position</code> in its way
+     */
+    public int rowAt(int position) {
+        return index.valueAt(position) - offsets[wayAt(position)];
+    }
+
+    /**
+     * Replies the number of different ways the node with the unique id
+     * <code>nodeId</code> occurs in
+     */
+    public int getWayCount(long nodeId) {
+        int count = 0;
+        int last = -1;
+        for (int p = firstPosition(nodeId); p != LongIntMultiMap.NONE; p = nextPosition(p)) {
+            int w = wayAt(p);
+            if (w != last) {
+                count++;
+                last = w;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Replies the first position of the node with the unique id <code>nodeId</code>
+     * in the next way after <code>way</code> which contains it, wrapping around at
+     * the last way
+     *
+     * @return the position, or {@link LongIntMultiMap#NONE} if no other way contains
+     * the node
+     */
+    public int findInNextWay(long nodeId, int way) {
+        int wrapped = LongIntMultiMap.NONE;
+        for (int p = firstPosition(nodeId); p != LongIntMultiMap.NONE; p = nextPosition(p)) {
+            int w = wayAt(p);
+            if (w > way)
+                return p;
+            if (w < way && wrapped == LongIntMultiMap.NONE) {
+                wrapped = p;
+            }
+        }
+        return wrapped;
+    }
+}
@@ -7,20 +7,44 @@ import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 import javax.swing.AbstractAction;
 import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
+import javax.swing.JTabbedPane;
+import javax.swing.JTextField;
+import javax.swing.JToggleButton;
 import javax.swing.JToolBar;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
 
 import org.openstreetmap.josm.Main;
-import org.openstreetmap.josm.command.ChangeCommand;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.SequenceCommand;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.gui.ExtendedDialog;
+import org.openstreetmap.josm.gui.MapView;
 import org.openstreetmap.josm.gui.SideButton;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 import org.openstreetmap.josm.tools.CheckParameterUtil;
@@ -30,15 +54,55 @@ import org.openstreetmap.josm.tools.Shortcut;
 public class WayEditor extends ExtendedDialog {
     private static final long serialVersionUID = 1L;
 
+    public static final String PREF_CLICK_TOLERANCE = "waydetails.map-click-tolerance";
+    public static final int DEFAULT_CLICK_TOLERANCE = 10;
+
+    /** ways with more nodes than this show a progress bar while changes are applied */
+    public static final String PREF_APPLY_PROGRESS_THRESHOLD = "waydetails.apply-progress-threshold";
+    public static final int DEFAULT_APPLY_PROGRESS_THRESHOLD = 10000;
+
     private OsmDataLayer layer;
     private Way way;
-    private Way waySnapshot;
 
-    /** the member table */
+    /** the edited ways, with one member table per way */
+    private final List<Way> ways = new ArrayList<Way>();
+    private final List<WayRefTable> memberTables = new ArrayList<WayRefTable>();
+    private final List<WayRefTableModel> memberTableModels = new ArrayList<WayRefTableModel>();
+    private SharedNodeIndex sharedNodeIndex;
+    private JTabbedPane tabbedPane;
+
+    /** the member table of the current way */
     private WayRefTable memberTable;
     private WayRefTableModel memberTableModel;
 
+    /** shows the rows of the nodes and segments clicked on the map */
+    private MapClickHandler mapClickHandler;
+    /** map clicks only select rows while this is on */
+    private JToggleButton pickOnMap;
+
+    private ApplyAction applyAction;
+    private OKAction okAction;
+    private JProgressBar applyProgress;
+    /** the changes being applied, if any */
+    private ApplyTask pendingApply;
+
+    /** the toolbar actions, which act on the current way */
+    private final List<EditorAction> editorActions = new ArrayList<EditorAction>();
+
+    private JTextField searchField;
+    private JLabel searchResult;
+    /** the rows of the matches of the search in the current way, and the one shown or -1 */
+    private int[] matches;
+    private int match;
+
     public WayEditor(OsmDataLayer layer, Way way) {
+        this(layer, Collections.singletonList(way));
+    }
+
+    /**
+     * Opens the editor for several ways at once, one tab per way
+     */
+    public WayEditor(OsmDataLayer layer, Collection<Way> ways) {
         super(Main.parent,
             "",
             new String[] { tr("Apply Changes"), tr("Cancel")},
@@ -46,19 +110,59 @@ public class WayEditor extends ExtendedDialog {
             false
         );
         CheckParameterUtil.ensureParameterNotNull(layer, "layer");
+        CheckParameterUtil.ensureParameterNotNull(ways, "ways");
+        if (ways.isEmpty())
+            throw new IllegalArgumentException(tr("Parameter ''{0}'' must not be empty", "ways"));
         this.layer = layer;
-        setWay(way);
+        this.ways.addAll(ways);
 
         getContentPane().setLayout(new BorderLayout());
         getContentPane().add(buildWayMemberPanel(), BorderLayout.CENTER);
         getContentPane().add(buildManipulationToolbar(), BorderLayout.NORTH);
         getContentPane().add(buildOkCancelButtonPanel(), BorderLayout.SOUTH);
+        setCurrentWay(0);
 
         setSize(findMaxDialogSize());
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        if (Main.map != null && Main.map.mapView != null) {
+            mapClickHandler = new MapClickHandler();
+            Main.map.mapView.addMouseListener(mapClickHandler);
+        }
+    }
+
+    @Override
+    public void setVisible(boolean visible) {
+        super.setVisible(visible);
+        if (!visible) {
+            dispose();
+        }
+    }
+
+    /**
+     * Detaches the member tables and their models from the layer, the selection
+     * and the map view. Every path closing the editor ends here.
+     */
+    @Override
+    public void dispose() {
+        pendingApply = null;
+        for (WayRefTableModel model : memberTableModels) {
+            model.unregister();
+        }
+        for (WayRefTable table : memberTables) {
+            table.unlinkAsListener();
+        }
+        if (mapClickHandler != null) {
+            // the map frame may have been closed while the editor stayed open
+            if (Main.map != null && Main.map.mapView != null) {
+                Main.map.mapView.removeMouseListener(mapClickHandler);
+            }
+            mapClickHandler = null;
+        }
+        super.dispose();
     }
 
     protected void setWay(Way way) {
-        setWaySnapshot((way == null) ? null : new Way(way));
         this.way = way;
         updateTitle();
     }
@@ -71,32 +175,84 @@ public class WayEditor extends ExtendedDialog {
         return layer;
     }
 
+    /**
+     * Replies the index from nodes to the rows they occur in, shared by the member
+     * tables of all edited ways
+     */
+    public SharedNodeIndex getSharedNodeIndex() {
+        return sharedNodeIndex;
+    }
+
     @Override
     protected Dimension findMaxDialogSize() {
-        return new Dimension(400, 650);
+        return new Dimension(650, 650);
     }
 
     protected void updateTitle() {
-        setTitle(tr("Edit way #{0} in layer ''{1}''", way.getId(), layer.getName()));
+        if (ways.size() == 1) {
+            setTitle(tr("Edit way #{0} in layer ''{1}''", way.getId(), layer.getName()));
+        } else {
+            setTitle(tr("Edit {0} ways in layer ''{1}''", ways.size(), layer.getName()));
+        }
     }
 
-    protected void setWaySnapshot(Way snapshot) {
-        waySnapshot = snapshot;
+    /**
+     * Makes the way with the index <code>index</code> the one the toolbar acts on
+     */
+    protected void setCurrentWay(int index) {
+        memberTable = memberTables.get(index);
+        memberTableModel = memberTableModels.get(index);
+        setWay(ways.get(index));
+        for (EditorAction action : editorActions) {
+            action.updateEnabledState();
+        }
+        if (searchField != null) {
+            // only count the matches, the selection of the way stays as it was
+            refreshMatches();
+        }
+    }
+
+    /**
+     * Makes the way with the index <code>index</code> the current one, then selects
+     * and shows <code>ranges</code> in its member table
+     */
+    protected void showRows(int index, RowRanges ranges) {
+        if (tabbedPane != null) {
+            tabbedPane.setSelectedIndex(index);
+        }
+        // which also scrolls the first row into view
+        memberTableModels.get(index).setSelectedRanges(ranges);
     }
 
     private JPanel buildWayMemberPanel() {
         final JPanel pnl = new JPanel(new BorderLayout());
-        // setting up the member table
-        memberTableModel = new WayRefTableModel(getLayer(), getWay());
-        memberTableModel.register();
-        memberTable = new WayRefTable(getLayer(),memberTableModel);
-//        memberTable.addMouseListener(new MemberTableDblClickAdapter());
-        memberTableModel.addMemberModelListener(memberTable);
-
-        final JScrollPane scrollPane = new JScrollPane(memberTable);
-        
-        pnl.add(scrollPane, BorderLayout.CENTER);
-        
+        // setting up the member tables
+        for (Way w : ways) {
+            WayRefTableModel model = new WayRefTableModel(getLayer(), w);
+            model.register();
+            model.getSearchIndex().build();
+            WayRefTable table = new WayRefTable(getLayer(), model);
+            model.addMemberModelListener(table);
+            model.addMemberModelListener(new HistoryClearedHandler(w));
+            memberTableModels.add(model);
+            memberTables.add(table);
+        }
+        sharedNodeIndex = new SharedNodeIndex(memberTableModels);
+
+        if (ways.size() == 1) {
+            pnl.add(new JScrollPane(memberTables.get(0)), BorderLayout.CENTER);
+            return pnl;
+        }
+        tabbedPane = new JTabbedPane(JTabbedPane.TOP, JTabbedPane.SCROLL_TAB_LAYOUT);
+        for (int i = 0; i < ways.size(); i++) {
+            tabbedPane.addTab(tr("Way {0}", ways.get(i).getId()), new JScrollPane(memberTables.get(i)));
+        }
+        tabbedPane.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                setCurrentWay(tabbedPane.getSelectedIndex());
+            }
+        });
+        pnl.add(tabbedPane, BorderLayout.CENTER);
         return pnl;
     }
 
@@ -104,32 +260,330 @@ public class WayEditor extends ExtendedDialog {
         JToolBar tb  = new JToolBar();
         tb.setFloatable(false);
 
-        // -- move up action
-        MoveUpAction moveUpAction = new MoveUpAction();
-        memberTableModel.getSelectionModel().addListSelectionListener(moveUpAction);
-        tb.add(moveUpAction);
-
-        // -- move down action
-        MoveDownAction moveDownAction = new MoveDownAction();
-        memberTableModel.getSelectionModel().addListSelectionListener(moveDownAction);
-        tb.add(moveDownAction);
-
-        // -- delete action
-        RemoveAction removeSelectedAction = new RemoveAction();
-        memberTable.getSelectionModel().addListSelectionListener(removeSelectedAction);
-        tb.add(removeSelectedAction);
-        
+        addEditorAction(tb, new MoveUpAction());
+        addEditorAction(tb, new MoveDownAction());
+        addEditorAction(tb, new MoveToAction());
+        addEditorAction(tb, new RemoveAction());
+        addEditorAction(tb, new InsertSelectedAction());
+        tb.addSeparator();
+        addEditorAction(tb, new UndoAction());
+        addEditorAction(tb, new RedoAction());
+        if (ways.size() > 1) {
+            tb.addSeparator();
+            addEditorAction(tb, new NextSharingWayAction());
+        }
+        tb.addSeparator();
+        pickOnMap = new JToggleButton(tr("Pick on map"));
+        pickOnMap.setToolTipText(tr("Select the nearest node or segment of the edited ways with clicks on the map"));
+        pickOnMap.setEnabled(Main.map != null && Main.map.mapView != null);
+        tb.add(pickOnMap);
+        tb.addSeparator();
+        buildSearch(tb);
+
         return tb;
     }
 
+    /**
+     * Adds the search field to the toolbar. Typing shows the first match, Enter or F3
+     * the next one.
+     */
+    private void buildSearch(JToolBar tb) {
+        searchField = new JTextField(12);
+        searchField.setToolTipText(tr("Node id or the start of one, tag key, key=value or value"));
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                search();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                search();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+                search();
+            }
+        });
+        NextMatchAction nextMatchAction = new NextMatchAction();
+        searchField.addActionListener(nextMatchAction);
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW)
+        .put(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0), "wayeditor:nextmatch");
+        getRootPane().getActionMap().put("wayeditor:nextmatch", nextMatchAction);
+        searchResult = new JLabel();
+
+        tb.add(new JLabel(tr("Search:")));
+        tb.add(searchField);
+        tb.add(nextMatchAction);
+        tb.add(searchResult);
+    }
+
+    /**
+     * Looks the text of the search field up in the search index of the current way
+     * and shows the first match
+     */
+    protected void search() {
+        matches = memberTableModel.getSearchIndex().find(searchField.getText());
+        match = 0;
+        showMatch();
+    }
+
+    /**
+     * Looks the text of the search field up in the search index of the current way
+     * and shows the number of matches, without moving the selection. The next match
+     * is then the first one.
+     */
+    protected void refreshMatches() {
+        matches = memberTableModel.getSearchIndex().find(searchField.getText());
+        match = -1;
+        showMatch();
+    }
+
+    /**
+     * Shows the next match of the search, after the last one. The matches are only
+     * looked up again if the rows changed since.
+     */
+    protected void nextMatch() {
+        int[] current = memberTableModel.getSearchIndex().find(searchField.getText());
+        if (current != matches) {
+            // the rows changed, go on after the row of the last match
+            int last = matches == null || match < 0 || matches.length == 0 ? -1 : matches[match];
+            matches = current;
+            match = 0;
+            while (match < matches.length && matches[match] <= last) {
+                match++;
+            }
+            if (match == matches.length) {
+                match = 0;
+            }
+        } else if (matches.length > 0) {
+            match = (match + 1) % matches.length;
+        }
+        showMatch();
+    }
+
+    private void showMatch() {
+        if (matches.length == 0) {
+            searchResult.setText(searchField.getText().trim().length() == 0 ? "" : tr("No match"));
+            return;
+        }
+        if (match < 0) {
+            searchResult.setText(tr("{0} matches", matches.length));
+            return;
+        }
+        searchResult.setText(tr("{0} of {1}", match + 1, matches.length));
+        RowRanges ranges = new RowRanges(1);
+        ranges.add(matches[match], matches[match]);
+        showRows(memberTableModels.indexOf(memberTableModel), ranges);
+    }
+
+    /**
+     * Adds <code>action</code> to the toolbar and lets it follow the selection and
+     * the nodes of every way
+     */
+    private void addEditorAction(JToolBar tb, EditorAction action) {
+        for (WayRefTableModel model : memberTableModels) {
+            model.getSelectionModel().addListSelectionListener(action);
+            model.addTableModelListener(action);
+        }
+        editorActions.add(action);
+        tb.add(action);
+    }
+
+    /**
+     * Writes the nodes edited in the member tables to their ways, as one undoable
+     * command. Until then the ways in the dataset are left untouched. The command
+     * only keeps the difference between the old and the new nodes of each way.
+     *
+     * The nodes are copied on the EDT, the differences are computed by
+     * {@link Main#worker} and the command is executed on the EDT again, while the
+     * member tables stay editable. Edits made in the meantime are kept, but not
+     * applied. With <code>close</code> the editor is closed afterwards, unless such
+     * edits were made.
+     *
+     * The editor isn't modal, so a way may change in the dataset while it is edited.
+     * Such changes aren't overwritten silently, see {@link #confirmConflicts}.
+     */
+    protected void applyChanges(boolean close) {
+        if (pendingApply != null)
+            return;
+        ApplyTask task = new ApplyTask(close);
+        int rows = 0;
+        for (WayRefTableModel model : memberTableModels) {
+            if (model.isModified() && !confirmConflicts(model))
+                return;
+        }
+        for (WayRefTableModel model : memberTableModels) {
+            if (model.isModified()) {
+                task.add(model);
+                rows += model.getRowCount();
+            }
+        }
+        if (task.models.isEmpty()) {
+            if (close) {
+                setVisible(false);
+            }
+            return;
+        }
+        pendingApply = task;
+        applyAction.setEnabled(false);
+        okAction.setEnabled(false);
+        int threshold = Main.pref == null ? DEFAULT_APPLY_PROGRESS_THRESHOLD
+                : Main.pref.getInteger(PREF_APPLY_PROGRESS_THRESHOLD, DEFAULT_APPLY_PROGRESS_THRESHOLD);
+        if (rows > threshold) {
+            applyProgress.setVisible(true);
+        }
+        Main.worker.submit(task);
+    }
+
+    /**
+     * Executes the command of <code>task</code>, on the EDT. If the command
+     * couldn't be computed the error is reported and nothing is applied.
+     */
+    protected void commitChanges(ApplyTask task) {
+        if (pendingApply != task)
+            // the editor was closed in the meantime
+            return;
+        pendingApply = null;
+        applyProgress.setVisible(false);
+        applyAction.setEnabled(true);
+        okAction.setEnabled(true);
+
+        if (!task.computed) {
+            String message = task.failure == null ? null : task.failure.getMessage();
+            JOptionPane.showMessageDialog(this,
+                    tr("The changes could not be applied: {0}", message == null ? tr("unknown error") : message),
+                    tr("Error"), JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        for (int i = 0; i < task.models.size(); i++) {
+            if (!task.models.get(i).getWay().getNodes().equals(task.oldNodes.get(i))
+                    || task.models.get(i).getDeletedRows().size() > 0) {
+                // the way changed while the command was computed, start over and ask
+                applyChanges(task.close);
+                return;
+            }
+        }
+        List<Command> cmds = new ArrayList<Command>();
+        for (int i = 0; i < task.models.size(); i++) {
+            ChangeWayNodesCommand cmd = task.commands[i];
+            if (cmd != null) {
+                cmds.add(cmd);
+            }
+        }
+        if (cmds.size() == 1) {
+            Main.main.undoRedo.add(cmds.get(0));
+        } else if (cmds.size() > 1) {
+            Main.main.undoRedo.add(new SequenceCommand(tr("Change nodes of {0} ways", cmds.size()), cmds));
+        }
+        boolean edited = false;
+        for (int i = 0; i < task.models.size(); i++) {
+            WayRefTableModel model = task.models.get(i);
+            model.applied(task.editCounts[i]);
+            edited |= model.isModified();
+        }
+        if (task.close && !edited) {
+            setVisible(false);
+        }
+    }
+
+    /**
+     * Asks what to do if the way of <code>model</code> changed in the dataset since
+     * its nodes were loaded or last applied, or if nodes of it were deleted. Deleted
+     * nodes can be removed from the edited nodes; changes of the way are only
+     * overwritten if the user agrees.
+     *
+     * @return false to cancel applying the changes
+     */
+    protected boolean confirmConflicts(WayRefTableModel model) {
+        long id = model.getWay().getId();
+        RowRanges deleted = model.getDeletedRows();
+        if (!deleted.isEmpty()) {
+            int answer = JOptionPane.showConfirmDialog(this,
+                    tr("{0} nodes of way #{1} were deleted outside of the editor. Remove them from the way and apply the changes?",
+                            deleted.rowCount(), id),
+                    tr("Deleted nodes"), JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE);
+            if (answer != JOptionPane.OK_OPTION) {
+                showRows(memberTableModels.indexOf(model), deleted);
+                return false;
+            }
+            model.remove(deleted);
+        }
+        if (model.isWayChangedOutside()) {
+            int answer = JOptionPane.showConfirmDialog(this,
+                    tr("Way #{0} was changed outside of the editor since you started editing it. "
+                            + "Overwrite these changes with the nodes in the editor?", id),
+                    tr("Conflicting changes"), JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE);
+            if (answer != JOptionPane.OK_OPTION)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Computes the commands for a snapshot of the edited nodes, off the EDT
+     */
+    class ApplyTask implements Runnable {
+        final boolean close;
+        final List<WayRefTableModel> models = new ArrayList<WayRefTableModel>();
+        final List<List<Node>> oldNodes = new ArrayList<List<Node>>();
+        final List<List<Node>> newNodes = new ArrayList<List<Node>>();
+        int[] editCounts = new int[0];
+        ChangeWayNodesCommand[] commands;
+        /** set once all commands were computed */
+        boolean computed;
+        Throwable failure;
+
+        ApplyTask(boolean close) {
+            this.close = close;
+        }
+
+        void add(WayRefTableModel model) {
+            models.add(model);
+            oldNodes.add(model.getWay().getNodes());
+            newNodes.add(model.getNodes());
+            editCounts = Arrays.copyOf(editCounts, models.size());
+            editCounts[models.size() - 1] = model.getEditCount();
+        }
+
+        public void run() {
+            try {
+                commands = new ChangeWayNodesCommand[models.size()];
+                for (int i = 0; i < models.size(); i++) {
+                    commands[i] = ChangeWayNodesCommand.create(models.get(i).getWay(), oldNodes.get(i), newNodes.get(i));
+                }
+                computed = true;
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                // always back to the EDT, which enables the actions again
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        commitChanges(ApplyTask.this);
+                    }
+                });
+            }
+        }
+    }
+
     protected JPanel buildOkCancelButtonPanel() {
         JPanel pnl = new JPanel();
         pnl.setLayout(new FlowLayout(FlowLayout.CENTER));
 
-        pnl.add(new SideButton(new ApplyAction()));
-        pnl.add(new SideButton(new OKAction()));
+        applyAction = new ApplyAction();
+        okAction = new OKAction();
+        pnl.add(new SideButton(applyAction));
+        pnl.add(new SideButton(okAction));
         pnl.add(new SideButton(new CancelAction()));
-        return pnl;
+
+        applyProgress = new JProgressBar();
+        applyProgress.setIndeterminate(true);
+        applyProgress.setStringPainted(true);
+        applyProgress.setString(tr("Preparing the changes..."));
+        applyProgress.setVisible(false);
+
+        JPanel south = new JPanel(new BorderLayout());
+        south.add(applyProgress, BorderLayout.NORTH);
+        south.add(pnl, BorderLayout.CENTER);
+        return south;
     }
 
     class ApplyAction extends AbstractAction {
@@ -143,9 +597,8 @@ public class WayEditor extends ExtendedDialog {
         }
 
         public void actionPerformed(ActionEvent e) {
-            Main.main.undoRedo.add(new ChangeCommand(waySnapshot, way));
-            setWay(way);
-            getLayer().data.fireSelectionChanged();
+            // the command fires the dataset events for the changed ways
+            applyChanges(false);
         }
     }
 
@@ -160,9 +613,7 @@ public class WayEditor extends ExtendedDialog {
         }
 
         public void actionPerformed(ActionEvent e) {
-            Main.main.undoRedo.add(new ChangeCommand(waySnapshot, way));
-            getLayer().data.fireSelectionChanged();
-            setVisible(false);
+            applyChanges(true);
         }
     }
 
@@ -185,7 +636,99 @@ public class WayEditor extends ExtendedDialog {
         }
     }
     
-    class MoveUpAction extends AbstractAction implements ListSelectionListener {
+    /**
+     * Selects the row of the node, or the rows of the segment, of the edited ways
+     * nearest to a click on the map, while "Pick on map" is on. Looks the segment up
+     * in the spatial index of every way, so a click costs a few box tests rather than
+     * a scan of the nodes.
+     */
+    class MapClickHandler extends MouseAdapter {
+        @Override
+        public void mouseClicked(MouseEvent e) {
+            if (!pickOnMap.isSelected() || !SwingUtilities.isLeftMouseButton(e) || Main.main.getEditLayer() != layer)
+                return;
+            MapView mapView = Main.map.mapView;
+            EastNorth p = mapView.getEastNorth(e.getX(), e.getY());
+            int pixels = Main.pref == null ? DEFAULT_CLICK_TOLERANCE
+                    : Main.pref.getInteger(PREF_CLICK_TOLERANCE, DEFAULT_CLICK_TOLERANCE);
+            double tolerance = mapView.getScale() * pixels;
+            int bestWay = -1;
+            int bestRow = -1;
+            double best = Double.POSITIVE_INFINITY;
+            for (int w = 0; w < memberTableModels.size(); w++) {
+                SegmentIndex index = memberTableModels.get(w).getSegmentIndex();
+                int row = index.findNearestSegment(p.east(), p.north(), tolerance);
+                if (row >= 0 && index.distanceSq(p.east(), p.north(), row) < best) {
+                    best = index.distanceSq(p.east(), p.north(), row);
+                    bestWay = w;
+                    bestRow = row;
+                }
+            }
+            if (bestWay < 0)
+                return;
+            SegmentIndex index = memberTableModels.get(bestWay).getSegmentIndex();
+            double start = index.nodeDistanceSq(p.east(), p.north(), bestRow);
+            double end = index.nodeDistanceSq(p.east(), p.north(), bestRow + 1);
+            RowRanges ranges = new RowRanges(1);
+            if (Math.min(start, end) <= tolerance * tolerance) {
+                // close to a node, show the node
+                int row = start <= end ? bestRow : bestRow + 1;
+                ranges.add(row, row);
+            } else {
+                ranges.add(bestRow, bestRow + 1);
+            }
+            showRows(bestWay, ranges);
+        }
+    }
+
+    /**
+     * Tells the user that the undo/redo history of a way was dropped because the way
+     * was changed outside of the editor
+     */
+    class HistoryClearedHandler implements INodeRefModelListener {
+        private final Way way;
+
+        public HistoryClearedHandler(Way way) {
+            this.way = way;
+        }
+
+        public void makeMemberVisible(int index) {
+        }
+
+        public void historyCleared() {
+            // not from within the dataset event
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    if (!isDisplayable())
+                        return;
+                    JOptionPane.showMessageDialog(WayEditor.this,
+                            tr("Way #{0} was changed outside of the editor. Its nodes were reloaded and its undo history was cleared.", way.getId()),
+                            tr("Information"), JOptionPane.INFORMATION_MESSAGE);
+                }
+            });
+        }
+    }
+
+    /**
+     * A toolbar action on the current way. It updates its enabled state whenever the
+     * selection or the nodes of any way change, and when another way becomes the
+     * current one.
+     */
+    abstract class EditorAction extends AbstractAction implements ListSelectionListener, TableModelListener {
+        private static final long serialVersionUID = 1L;
+
+        protected abstract void updateEnabledState();
+
+        public void valueChanged(ListSelectionEvent e) {
+            updateEnabledState();
+        }
+
+        public void tableChanged(TableModelEvent e) {
+            updateEnabledState();
+        }
+    }
+
+    class MoveUpAction extends EditorAction {
         private static final long serialVersionUID = 1L;
 
         public MoveUpAction() {
@@ -197,51 +740,218 @@ public class WayEditor extends ExtendedDialog {
         }
 
         public void actionPerformed(ActionEvent e) {
-            memberTableModel.moveUp(memberTable.getSelectedRows());
+            memberTableModel.moveUp(memberTableModel.getSelectedRanges());
         }
 
-        public void valueChanged(ListSelectionEvent e) {
-            setEnabled(memberTableModel.canMoveUp(memberTable.getSelectedRows()));
+        @Override
+        protected void updateEnabledState() {
+            setEnabled(memberTableModel.canMoveUp(memberTableModel.getSelectedRanges()));
         }
     }
 
-    class MoveDownAction extends AbstractAction implements ListSelectionListener {
+    class MoveDownAction extends EditorAction {
         private static final long serialVersionUID = 1L;
 
         public MoveDownAction() {
             putValue(SHORT_DESCRIPTION, tr("Move the currently selected members down"));
             putValue(SMALL_ICON, ImageProvider.get("dialogs", "movedown"));
-            Shortcut.registerShortcut("wayeditor:moveup", tr("Way Editor: Move Down"), KeyEvent.VK_J,
+            Shortcut.registerShortcut("wayeditor:movedown", tr("Way Editor: Move Down"), KeyEvent.VK_J,
                     Shortcut.GROUP_MNEMONIC);
             setEnabled(false);
         }
 
         public void actionPerformed(ActionEvent e) {
-            memberTableModel.moveDown(memberTable.getSelectedRows());
+            memberTableModel.moveDown(memberTableModel.getSelectedRanges());
         }
 
-        public void valueChanged(ListSelectionEvent e) {
-            setEnabled(memberTableModel.canMoveDown(memberTable.getSelectedRows()));
+        @Override
+        protected void updateEnabledState() {
+            setEnabled(memberTableModel.canMoveDown(memberTableModel.getSelectedRanges()));
         }
     }
 
-    class RemoveAction extends AbstractAction implements ListSelectionListener {
+    /**
+     * Moves the selected members, as one block, to a row
+     */
+    class MoveToAction extends EditorAction {
+        private static final long serialVersionUID = 1L;
+
+        public MoveToAction() {
+            putValue(SHORT_DESCRIPTION, tr("Move the currently selected members to a row"));
+            putValue(NAME, tr("Move to..."));
+            setEnabled(false);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            RowRanges selected = memberTableModel.getSelectedRanges();
+            int last = memberTableModel.getRowCount() - selected.rowCount() + 1;
+            String input = JOptionPane.showInputDialog(WayEditor.this,
+                    tr("Row of the first moved member (1 to {0}):", last));
+            if (input == null || input.trim().length() == 0)
+                return;
+            int row;
+            try {
+                row = Integer.parseInt(input.trim());
+            } catch (NumberFormatException ex) {
+                row = 0;
+            }
+            if (row < 1 || row > last) {
+                JOptionPane.showMessageDialog(WayEditor.this,
+                        tr("''{0}'' is not a valid row.", input), tr("Error"), JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            memberTableModel.moveRowsTo(selected, row - 1);
+        }
+
+        @Override
+        protected void updateEnabledState() {
+            setEnabled(!memberTableModel.getSelectionModel().isSelectionEmpty());
+        }
+    }
+
+    class RemoveAction extends EditorAction {
         private static final long serialVersionUID = 1L;
 
         public RemoveAction() {
             putValue(SHORT_DESCRIPTION, tr("Remove the currently selected members from this way"));
             putValue(SMALL_ICON, ImageProvider.get("dialogs", "remove"));
-            Shortcut.registerShortcut("wayeditor:remove", tr("Way Editor: Remove"), KeyEvent.VK_J,
+            Shortcut.registerShortcut("wayeditor:remove", tr("Way Editor: Remove"), KeyEvent.VK_R,
                     Shortcut.GROUP_MNEMONIC);
             setEnabled(false);
         }
 
         public void actionPerformed(ActionEvent e) {
-            memberTableModel.remove(memberTable.getSelectedRows());
+            memberTableModel.remove(memberTableModel.getSelectedRanges());
         }
 
-        public void valueChanged(ListSelectionEvent e) {
-            setEnabled(memberTableModel.canRemove(memberTable.getSelectedRows()));
+        @Override
+        protected void updateEnabledState() {
+            setEnabled(memberTableModel.canRemove(memberTableModel.getSelectedRanges()));
+        }
+    }
+
+    /**
+     * Inserts the nodes selected in the layer into the nearest segments of the
+     * current way
+     */
+    class InsertSelectedAction extends EditorAction {
+        private static final long serialVersionUID = 1L;
+
+        public InsertSelectedAction() {
+            putValue(SHORT_DESCRIPTION, tr("Insert the nodes selected on the map into the nearest segments of this way"));
+            putValue(NAME, tr("Insert selected"));
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            if (memberTableModel.insertNearestSegments(layer.data.getSelectedNodes()) == 0) {
+                JOptionPane.showMessageDialog(WayEditor.this,
+                        tr("Please select the nodes to insert on the map. Nodes which are already in the way are skipped."),
+                        tr("Information"), JOptionPane.INFORMATION_MESSAGE);
+            }
+        }
+
+        @Override
+        protected void updateEnabledState() {
+            // the selection of the layer isn't followed, see actionPerformed
+        }
+    }
+
+    class UndoAction extends EditorAction {
+        private static final long serialVersionUID = 1L;
+
+        public UndoAction() {
+            putValue(SHORT_DESCRIPTION, tr("Undo the last change of the members"));
+            putValue(SMALL_ICON, ImageProvider.get("undo"));
+
+            getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW)
+            .put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, KeyEvent.CTRL_DOWN_MASK), "wayeditor:undo");
+            getRootPane().getActionMap().put("wayeditor:undo", this);
+            setEnabled(false);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            memberTableModel.undo();
+        }
+
+        @Override
+        protected void updateEnabledState() {
+            setEnabled(memberTableModel.canUndo());
+        }
+    }
+
+    class RedoAction extends EditorAction {
+        private static final long serialVersionUID = 1L;
+
+        public RedoAction() {
+            putValue(SHORT_DESCRIPTION, tr("Redo the last undone change of the members"));
+            putValue(SMALL_ICON, ImageProvider.get("redo"));
+
+            getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW)
+            .put(KeyStroke.getKeyStroke(KeyEvent.VK_Y, KeyEvent.CTRL_DOWN_MASK), "wayeditor:redo");
+            getRootPane().getActionMap().put("wayeditor:redo", this);
+            setEnabled(false);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            memberTableModel.redo();
+        }
+
+        @Override
+        protected void updateEnabledState() {
+            setEnabled(memberTableModel.canRedo());
+        }
+    }
+
+    /**
+     * Shows the next match of the search field
+     */
+    class NextMatchAction extends AbstractAction {
+        private static final long serialVersionUID = 1L;
+
+        public NextMatchAction() {
+            putValue(SHORT_DESCRIPTION, tr("Show the next node matching the search (F3)"));
+            putValue(NAME, tr("Next match"));
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            nextMatch();
+        }
+    }
+
+    /**
+     * Jumps to the first selected node in the next edited way which shares it
+     */
+    class NextSharingWayAction extends EditorAction {
+        private static final long serialVersionUID = 1L;
+
+        public NextSharingWayAction() {
+            putValue(SHORT_DESCRIPTION, tr("Show the selected node in the next way which shares it"));
+            putValue(NAME, tr("Next way"));
+            setEnabled(false);
+        }
+
+        private int findTarget() {
+            RowRanges selected = memberTableModel.getSelectedRanges();
+            if (selected.isEmpty())
+                return LongIntMultiMap.NONE;
+            long nodeId = memberTableModel.getNodeId(selected.first());
+            return sharedNodeIndex.findInNextWay(nodeId, memberTableModels.indexOf(memberTableModel));
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            int position = findTarget();
+            if (position == LongIntMultiMap.NONE)
+                return;
+            int row = sharedNodeIndex.rowAt(position);
+            RowRanges ranges = new RowRanges(1);
+            ranges.add(row, row);
+            showRows(sharedNodeIndex.wayAt(position), ranges);
+        }
+
+        @Override
+        protected void updateEnabledState() {
+            // don't look up the index here, it is rebuilt lazily after every edit
+            setEnabled(!memberTableModel.getSelectionModel().isSelectionEmpty());
         }
     }
 }
@@ -0,0 +1,412 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+/**
+ * The geometry of the nodes of a {@link WayRefTableModel}: the length of the
+ * segment ending at each node, the distance along the way, the bearing of the
+ * segment starting at each node and the turn angle at each node.
+ *
+ * The values are kept in primitive arrays aligned with the rows of the model.
+ * They are computed off the EDT from the {@link CoordinateCache} of the model, in
+ * parallel chunks of at most {@link #CHUNK_SIZE} rows.
+ *
+ * Only rows next to an inserted, removed, moved or reordered row are recomputed.
+ * When rows are inserted or removed, the arrays are shifted along with the model.
+ * Results for a layout of the rows which changed in the meantime are dropped and
+ * computed again.
+ *
+ * Distances along the way come from a {@link DistanceIndex} over the lengths, which
+ * is updated per row as lengths arrive and rebuilt after rows were inserted or
+ * removed.
+ *
+ * Values which aren't computed yet, and values which don't exist (the length at
+ * the first node, the bearing at the last node), are NaN. Apart from the computing
+ * threads, everything runs on the EDT.
+ */
+public class WayGeometry implements TableModelListener {
+
+    public static final int CHUNK_SIZE = 16384;
+
+    /** the radius JOSM uses for great circle distances */
+    private static final double EARTH_RADIUS = 6378137;
+
+    private static ExecutorService executor;
+
+    /**
+     * Replies the pool of the threads which compute the geometry and validate the
+     * ways
+     */
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger threads = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "waydetails-geometry-" + threads.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private final WayRefTableModel model;
+
+    private int size;
+    private double[] length = new double[0];
+    private double[] bearing = new double[0];
+    private double[] turn = new double[0];
+
+    /** rows whose values have to be computed */
+    private final BitSet dirty = new BitSet();
+    /** rows whose values are being computed */
+    private final BitSet inFlight = new BitSet();
+    /** the distances along the way, rebuilt lazily after rows were inserted or removed */
+    private final DistanceIndex distances = new DistanceIndex();
+    private boolean distancesValid;
+    /** the first row which is dirty or being computed, or size */
+    private int firstPending;
+    private boolean firstPendingValid;
+
+    /**
+     * incremented whenever rows are inserted or removed, or rows are computed
+     * again before their results arrived
+     */
+    private int layout;
+    private boolean scheduled;
+    private boolean disposed;
+
+    public WayGeometry(WayRefTableModel model) {
+        this.model = model;
+        reset();
+    }
+
+    /**
+     * Stops computing; pending results are dropped
+     */
+    public void dispose() {
+        disposed = true;
+        layout++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Replies the length in meters of the segment ending at <code>row</code>
+     */
+    public double getLength(int row) {
+        return row < size ? length[row] : Double.NaN;
+    }
+
+    /**
+     * Replies the distance in meters from the first node to <code>row</code>
+     * along the way
+     */
+    public double getDistance(int row) {
+        if (row >= getFirstPendingRow())
+            return Double.NaN;
+        return getDistanceIndex().prefixSum(row);
+    }
+
+    /**
+     * Replies the row at the end of the segment which contains the point
+     * <code>distance</code> meters along the way, or -1 if the lengths aren't all
+     * computed yet
+     */
+    public int findRowAtDistance(double distance) {
+        if (getFirstPendingRow() < size || size == 0)
+            return -1;
+        return getDistanceIndex().findRow(distance);
+    }
+
+    /**
+     * Replies the length of the way in meters, or NaN if the lengths aren't all
+     * computed yet
+     */
+    public double getTotalLength() {
+        if (getFirstPendingRow() < size)
+            return Double.NaN;
+        return getDistanceIndex().total();
+    }
+
+    private DistanceIndex getDistanceIndex() {
+        if (!distancesValid) {
+            distances.build(length, size);
+            distancesValid = true;
+        }
+        return distances;
+    }
+
+    private int getFirstPendingRow() {
+        if (!firstPendingValid) {
+            int d = dirty.nextSetBit(0);
+            int f = inFlight.nextSetBit(0);
+            firstPending = Math.min(d < 0 ? size : d, f < 0 ? size : f);
+            firstPendingValid = true;
+        }
+        return firstPending;
+    }
+
+    /**
+     * Replies the bearing in degrees (0 to 360, clockwise from north) of the
+     * segment starting at <code>row</code>
+     */
+    public double getBearing(int row) {
+        return row < size ? bearing[row] : Double.NaN;
+    }
+
+    /**
+     * Replies the change of direction in degrees at <code>row</code>, positive for
+     * right turns, between -180 and 180
+     */
+    public double getTurn(int row) {
+        return row < size ? turn[row] : Double.NaN;
+    }
+
+    /**
+     * Replies true if values are pending
+     */
+    public boolean isComputing() {
+        return !dirty.isEmpty() || !inFlight.isEmpty();
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* Tracking the rows of the model                                              */
+    /* --------------------------------------------------------------------------- */
+
+    public void tableChanged(TableModelEvent e) {
+        if (disposed || e.getColumn() != TableModelEvent.ALL_COLUMNS)
+            // column updates, among them the ones fired for computed values
+            return;
+        int first = e.getFirstRow();
+        int last = e.getLastRow();
+        if (last == Integer.MAX_VALUE || first == TableModelEvent.HEADER_ROW) {
+            reset();
+            return;
+        }
+        switch (e.getType()) {
+        case TableModelEvent.INSERT:
+            rowsInserted(first, last);
+            break;
+        case TableModelEvent.DELETE:
+            rowsDeleted(first, last);
+            break;
+        default:
+            markDirty(first - 1, last + 1);
+            break;
+        }
+        schedule();
+    }
+
+    private void reset() {
+        layout++;
+        size = model.getRowCount();
+        length = RowArrays.newNaNs(size);
+        bearing = RowArrays.newNaNs(size);
+        turn = RowArrays.newNaNs(size);
+        dirty.clear();
+        dirty.set(0, size);
+        inFlight.clear();
+        distancesValid = false;
+        firstPendingValid = false;
+        schedule();
+    }
+
+    private void markDirty(int first, int last) {
+        first = Math.max(first, 0);
+        last = Math.min(last, size - 1);
+        if (first <= last) {
+            dirty.set(first, last + 1);
+            firstPendingValid = false;
+        }
+    }
+
+    private void rowsInserted(int first, int last) {
+        int count = last - first + 1;
+        int newSize = size + count;
+        length = RowArrays.open(length, first, count, newSize);
+        bearing = RowArrays.open(bearing, first, count, newSize);
+        turn = RowArrays.open(turn, first, count, newSize);
+        size = newSize;
+        shiftLayout(first, count);
+        markDirty(first - 1, last + 1);
+    }
+
+    private void rowsDeleted(int first, int last) {
+        int count = last - first + 1;
+        RowArrays.close(length, first, count, size);
+        RowArrays.close(bearing, first, count, size);
+        RowArrays.close(turn, first, count, size);
+        size -= count;
+        shiftLayout(first, -count);
+        markDirty(first - 1, first);
+    }
+
+    /**
+     * Shifts the row states after an insertion (<code>delta</code> &gt; 0) or a
+     * removal at <code>from</code>. Rows being computed are computed again.
+     */
+    private void shiftLayout(int from, int delta) {
+        layout++;
+        dirty.or(inFlight);
+        inFlight.clear();
+        RowArrays.shift(dirty, from, delta);
+        distancesValid = false;
+        firstPendingValid = false;
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* Computing                                                                   */
+    /* --------------------------------------------------------------------------- */
+
+    private void schedule() {
+        if (scheduled || disposed)
+            return;
+        scheduled = true;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                scheduled = false;
+                submitDirtyRows();
+            }
+        });
+    }
+
+    /**
+     * Submits a job per chunk of dirty rows. Each job gets a copy of the
+     * coordinates of its rows and their neighbours.
+     */
+    private void submitDirtyRows() {
+        if (disposed)
+            return;
+        if (dirty.intersects(inFlight)) {
+            // rows changed again while they were computed. Drop everything in flight
+            // rather than risk a late result overwriting a newer one
+            layout++;
+            dirty.or(inFlight);
+            inFlight.clear();
+        }
+        firstPendingValid = false;
+        for (int first = dirty.nextSetBit(0); first >= 0 && first < size;) {
+            int last = Math.min(dirty.nextClearBit(first), size) - 1;
+            last = Math.min(last, first + CHUNK_SIZE - 1);
+            int from = Math.max(first - 1, 0);
+            int to = Math.min(last + 1, size - 1);
+            double[] chunkLat = new double[to - from + 1];
+            double[] chunkLon = new double[to - from + 1];
+            model.getCoordinates().copyLatLon(from, to, chunkLat, chunkLon);
+            dirty.clear(first, last + 1);
+            inFlight.set(first, last + 1);
+            getExecutor().execute(new ChunkJob(layout, size, first, last, from, chunkLat, chunkLon));
+            first = dirty.nextSetBit(last + 1);
+        }
+        dirty.clear(size, Math.max(size, dirty.length()));
+    }
+
+    /**
+     * Stores the values of a job, on the EDT
+     */
+    private void apply(ChunkJob job) {
+        if (disposed || job.layout != layout)
+            return;
+        int n = job.last - job.first + 1;
+        if (distancesValid) {
+            for (int i = 0; i < n; i++) {
+                distances.set(job.first + i, length[job.first + i], job.length[i]);
+            }
+        }
+        System.arraycopy(job.length, 0, length, job.first, n);
+        System.arraycopy(job.bearing, 0, bearing, job.first, n);
+        System.arraycopy(job.turn, 0, turn, job.first, n);
+        inFlight.clear(job.first, job.last + 1);
+        firstPendingValid = false;
+        model.fireColumnUpdated(job.first, job.last, WayRefTableModel.COLUMN_LENGTH);
+        model.fireColumnUpdated(job.first, job.last, WayRefTableModel.COLUMN_BEARING);
+        model.fireColumnUpdated(job.first, job.last, WayRefTableModel.COLUMN_TURN);
+        // the distances of all following rows changed
+        model.fireColumnUpdated(job.first, size - 1, WayRefTableModel.COLUMN_DISTANCE);
+    }
+
+    /**
+     * Computes the values of the rows <code>first</code> to <code>last</code> from a
+     * copy of the coordinates of the rows <code>from</code> to <code>last + 1</code>
+     */
+    private class ChunkJob implements Runnable {
+        final int layout;
+        final int size;
+        final int first;
+        final int last;
+        final int from;
+        final double[] lat;
+        final double[] lon;
+        final double[] length;
+        final double[] bearing;
+        final double[] turn;
+
+        ChunkJob(int layout, int size, int first, int last, int from, double[] lat, double[] lon) {
+            this.layout = layout;
+            this.size = size;
+            this.first = first;
+            this.last = last;
+            this.from = from;
+            this.lat = lat;
+            this.lon = lon;
+            int n = last - first + 1;
+            this.length = new double[n];
+            this.bearing = new double[n];
+            this.turn = new double[n];
+        }
+
+        public void run() {
+            for (int row = first; row <= last; row++) {
+                int k = row - from;
+                int i = row - first;
+                length[i] = row > 0 ? distance(k - 1, k) : Double.NaN;
+                double out = row < size - 1 ? bearing(k, k + 1) : Double.NaN;
+                bearing[i] = out;
+                if (row > 0 && row < size - 1) {
+                    double t = out - bearing(k - 1, k);
+                    turn[i] = t > 180 ? t - 360 : t < -180 ? t + 360 : t;
+                } else {
+                    turn[i] = Double.NaN;
+                }
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    apply(ChunkJob.this);
+                }
+            });
+        }
+
+        private double distance(int a, int b) {
+            double lat1 = Math.toRadians(lat[a]);
+            double lat2 = Math.toRadians(lat[b]);
+            double sinDLat = Math.sin((lat2 - lat1) / 2);
+            double sinDLon = Math.sin(Math.toRadians(lon[b] - lon[a]) / 2);
+            double h = sinDLat * sinDLat + Math.cos(lat1) * Math.cos(lat2) * sinDLon * sinDLon;
+            return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+        }
+
+        private double bearing(int a, int b) {
+            double lat1 = Math.toRadians(lat[a]);
+            double lat2 = Math.toRadians(lat[b]);
+            double dLon = Math.toRadians(lon[b] - lon[a]);
+            double y = Math.sin(dLon) * Math.cos(lat2);
+            double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLon);
+            double deg = Math.toDegrees(Math.atan2(y, x));
+            return deg < 0 ? deg + 360 : deg;
+        }
+    }
+}
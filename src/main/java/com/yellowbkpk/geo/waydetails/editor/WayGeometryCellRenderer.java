@@ -0,0 +1,100 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Rectangle;
+
+import javax.swing.JLabel;
+import javax.swing.JTable;
+import javax.swing.SwingConstants;
+import javax.swing.table.TableCellRenderer;
+
+/**
+ * Renders one of the geometry columns of a {@link WayRefTable}. The value is read
+ * as a primitive from the {@link WayGeometry} of the model and formatted with one
+ * decimal in a reused buffer. Values which aren't computed yet are left empty.
+ */
+public class WayGeometryCellRenderer extends JLabel implements TableCellRenderer {
+
+    private final int column;
+    private final String unit;
+    private final StringBuilder buffer = new StringBuilder(16);
+
+    /**
+     * constructor
+     *
+     * @param column the column of the {@link WayRefTableModel}, one of the geometry columns
+     * @param unit the unit appended to the values
+     */
+    public WayGeometryCellRenderer(int column, String unit) {
+        this.column = column;
+        this.unit = unit;
+        setOpaque(true);
+        setHorizontalAlignment(SwingConstants.RIGHT);
+    }
+
+    protected double getValue(WayGeometry geometry, int row) {
+        switch (column) {
+        case WayRefTableModel.COLUMN_LENGTH:
+            return geometry.getLength(row);
+        case WayRefTableModel.COLUMN_DISTANCE:
+            return geometry.getDistance(row);
+        case WayRefTableModel.COLUMN_BEARING:
+            return geometry.getBearing(row);
+        case WayRefTableModel.COLUMN_TURN:
+            return geometry.getTurn(row);
+        }
+        return Double.NaN;
+    }
+
+    protected void format(double value) {
+        buffer.setLength(0);
+        if (Double.isNaN(value)) {
+            setText("");
+            return;
+        }
+        long tenths = Math.round(value * 10);
+        if (tenths < 0) {
+            buffer.append('-');
+            tenths = -tenths;
+        } else if (column == WayRefTableModel.COLUMN_TURN && tenths > 0) {
+            buffer.append('+');
+        }
+        buffer.append(tenths / 10).append('.').append(tenths % 10).append(unit);
+        setText(buffer.toString());
+    }
+
+    public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus,
+            int row, int column) {
+        WayRefTableModel model = (WayRefTableModel) table.getModel();
+        int modelRow = table.convertRowIndexToModel(row);
+        if (value == null || modelRow < 0 || modelRow >= model.getRowCount()) {
+            setText("");
+            setBackground(WayRefTableCellRenderer.BGCOLOR_EMPTY_ROW);
+            return this;
+        }
+        format(getValue(model.getGeometry(), modelRow));
+        setBackground(isSelected ? WayRefTableCellRenderer.BGCOLOR_SELECTED : Color.WHITE);
+        return this;
+    }
+
+    /*
+     * Overridden for performance reasons, see WayRefTableCellRenderer
+     */
+
+    @Override
+    public void validate() {}
+
+    @Override
+    public void revalidate() {}
+
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {}
+
+    @Override
+    public void repaint(Rectangle r) {}
+
+    @Override
+    public void repaint() {}
+}
@@ -0,0 +1,519 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+
+import org.openstreetmap.josm.data.osm.Node;
+
+/**
+ * Sorts and filters the rows of a {@link WayRefTableModel} without changing the
+ * order of the nodes of the way.
+ *
+ * The view order is kept as an <code>int[]</code> permutation from view to model
+ * rows, and its inverse. Rows are sorted by one primitive <code>long</code> key per
+ * row, ties broken by the model row, with a merge sort which runs in parallel
+ * chunks for large ways. Rows can be filtered by a prefix of their node id or by a
+ * tag key.
+ *
+ * Like the {@link javax.swing.DefaultRowSorter}, the rows are sorted again when
+ * rows are inserted, removed or replaced by other nodes, but not when only values
+ * change: sorting by the segment length uses the lengths computed so far, rows
+ * whose lengths are missing come last. Without a sort key and a filter the
+ * permutation is the identity and no arrays are kept.
+ */
+public class WayRefRowSorter extends RowSorter<WayRefTableModel> {
+
+    public static final int SORT_NONE = 0;
+    public static final int SORT_ID = 1;
+    public static final int SORT_LAT = 2;
+    public static final int SORT_LON = 3;
+    public static final int SORT_LENGTH = 4;
+    public static final int SORT_TAG_COUNT = 5;
+
+    /** ways with at least this many rows are sorted in parallel */
+    public static final int PARALLEL_THRESHOLD = 65536;
+
+    private static ExecutorService executor;
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger threads = new AtomicInteger();
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "waydetails-sort-" + threads.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private final WayRefTableModel model;
+
+    private int sortBy = SORT_NONE;
+    private boolean descending;
+
+    /** the id prefix filter: its value, number of digits and sign; digits is 0 without filter */
+    private long idPrefix;
+    private int idPrefixDigits;
+    private boolean idPrefixNegative;
+    /** the tag key filter, or null */
+    private String tagKey;
+
+    private int modelRowCount;
+    /** the model row of each view row, null for the identity */
+    private int[] viewToModel;
+    /** the view row of each model row, -1 for rows which are filtered out */
+    private int[] modelToView;
+
+    public WayRefRowSorter(WayRefTableModel model) {
+        this.model = model;
+        this.modelRowCount = model.getRowCount();
+    }
+
+    @Override
+    public WayRefTableModel getModel() {
+        return model;
+    }
+
+    /**
+     * Replies true if the rows are neither sorted nor filtered
+     */
+    public boolean isIdentity() {
+        return viewToModel == null;
+    }
+
+    public int getSortBy() {
+        return sortBy;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * Sorts the rows by <code>sortBy</code>, one of the <code>SORT_*</code>
+     * constants. {@link #SORT_NONE} restores the order of the way.
+     */
+    public void setSort(int sortBy, boolean descending) {
+        this.sortBy = sortBy;
+        this.descending = descending && sortBy != SORT_NONE;
+        fireSortOrderChanged();
+        sort();
+    }
+
+    /**
+     * Only shows the nodes whose id starts with <code>prefix</code>, an optional
+     * minus sign followed by digits
+     *
+     * @throws NumberFormatException if <code>prefix</code> isn't of that form
+     */
+    public void setIdPrefixFilter(String prefix) {
+        boolean negative = prefix.startsWith("-");
+        String digits = negative ? prefix.substring(1) : prefix;
+        if (digits.length() == 0 || digits.length() > 18 || digits.charAt(0) == '+')
+            throw new NumberFormatException(prefix);
+        idPrefix = Long.parseLong(digits);
+        idPrefixDigits = digits.length();
+        idPrefixNegative = negative;
+        tagKey = null;
+        sort();
+    }
+
+    /**
+     * Only shows the nodes which have the tag <code>key</code>
+     */
+    public void setTagKeyFilter(String key) {
+        tagKey = key;
+        idPrefixDigits = 0;
+        sort();
+    }
+
+    public void clearFilter() {
+        tagKey = null;
+        idPrefixDigits = 0;
+        sort();
+    }
+
+    public boolean isFiltered() {
+        return tagKey != null || idPrefixDigits > 0;
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* RowSorter                                                                   */
+    /* --------------------------------------------------------------------------- */
+
+    @Override
+    public int convertRowIndexToModel(int index) {
+        if (viewToModel == null)
+            return index;
+        return index < 0 || index >= viewToModel.length ? -1 : viewToModel[index];
+    }
+
+    @Override
+    public int convertRowIndexToView(int index) {
+        if (viewToModel == null)
+            return index;
+        return index < 0 || index >= modelToView.length ? -1 : modelToView[index];
+    }
+
+    @Override
+    public int getViewRowCount() {
+        return viewToModel == null ? modelRowCount : viewToModel.length;
+    }
+
+    @Override
+    public int getModelRowCount() {
+        return modelRowCount;
+    }
+
+    /**
+     * Sorts by the column: the node column by id, the length column by length.
+     * Each call cycles through ascending, descending and the order of the way.
+     */
+    @Override
+    public void toggleSortOrder(int column) {
+        int key = getSortBy(column);
+        if (key == SORT_NONE)
+            return;
+        if (sortBy != key) {
+            setSort(key, false);
+        } else if (!descending) {
+            setSort(key, true);
+        } else {
+            setSort(SORT_NONE, false);
+        }
+    }
+
+    private static int getSortBy(int column) {
+        switch (column) {
+        case WayRefTableModel.COLUMN_NODE:
+            return SORT_ID;
+        case WayRefTableModel.COLUMN_LENGTH:
+            return SORT_LENGTH;
+        }
+        return SORT_NONE;
+    }
+
+    @Override
+    public void setSortKeys(List<? extends SortKey> keys) {
+        if (keys == null || keys.isEmpty()) {
+            setSort(SORT_NONE, false);
+            return;
+        }
+        SortKey key = keys.get(0);
+        setSort(getSortBy(key.getColumn()), key.getSortOrder() == SortOrder.DESCENDING);
+    }
+
+    @Override
+    public List<? extends SortKey> getSortKeys() {
+        int column;
+        switch (sortBy) {
+        case SORT_ID:
+            column = WayRefTableModel.COLUMN_NODE;
+            break;
+        case SORT_LENGTH:
+            column = WayRefTableModel.COLUMN_LENGTH;
+            break;
+        default:
+            // no column shows the other keys
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(
+                new SortKey(column, descending ? SortOrder.DESCENDING : SortOrder.ASCENDING));
+    }
+
+    @Override
+    public void modelStructureChanged() {
+        sort();
+    }
+
+    @Override
+    public void allRowsChanged() {
+        sort();
+    }
+
+    @Override
+    public void rowsInserted(int firstRow, int endRow) {
+        sort();
+    }
+
+    @Override
+    public void rowsDeleted(int firstRow, int endRow) {
+        sort();
+    }
+
+    /**
+     * Rows updated in all columns hold other nodes now, e.g. after a move
+     */
+    @Override
+    public void rowsUpdated(int firstRow, int endRow) {
+        if (!isIdentity() || sortBy != SORT_NONE || isFiltered()) {
+            sort();
+        }
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow, int column) {
+        // only values changed, see the class comment
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* Sorting                                                                     */
+    /* --------------------------------------------------------------------------- */
+
+    private void sort() {
+        int[] oldViewToModel = viewToModel;
+        int n = model.getRowCount();
+        modelRowCount = n;
+        if (sortBy == SORT_NONE && !isFiltered()) {
+            viewToModel = null;
+            modelToView = null;
+            fireRowSorterChanged(oldViewToModel);
+            return;
+        }
+        int[] rows = new int[n];
+        int count = 0;
+        for (int row = 0; row < n; row++) {
+            if (include(row)) {
+                rows[count++] = row;
+            }
+        }
+        if (sortBy != SORT_NONE) {
+            sort(rows, count, getKeys(n));
+        }
+        int[] view = new int[count];
+        System.arraycopy(rows, 0, view, 0, count);
+        // rows is free again, reuse it
+        int[] inverse = rows;
+        Arrays.fill(inverse, -1);
+        for (int v = 0; v < count; v++) {
+            inverse[view[v]] = v;
+        }
+        viewToModel = view;
+        modelToView = inverse;
+        fireRowSorterChanged(oldViewToModel);
+    }
+
+    private boolean include(int row) {
+        if (idPrefixDigits > 0) {
+            long id = model.getNodeId(row);
+            if ((id < 0) != idPrefixNegative)
+                return false;
+            // reduce the id to its leading digits
+            long v = Math.abs(id);
+            long limit = 1;
+            for (int i = 0; i < idPrefixDigits; i++) {
+                limit *= 10;
+            }
+            if (v < limit / 10)
+                return false;
+            while (v >= limit) {
+                v /= 10;
+            }
+            return v == idPrefix;
+        }
+        if (tagKey != null)
+            return model.getReferredPrimitive(row).get(tagKey) != null;
+        return true;
+    }
+
+    /**
+     * Replies the keys of all model rows, encoded so that ascending order of the
+     * keys is the requested order, with missing values last
+     */
+    private long[] getKeys(int n) {
+        long[] keys = new long[n];
+        switch (sortBy) {
+        case SORT_ID:
+            for (int row = 0; row < n; row++) {
+                keys[row] = model.getNodeId(row);
+            }
+            break;
+        case SORT_LAT:
+        case SORT_LON:
+            double[] lat = new double[n];
+            double[] lon = new double[n];
+            if (n > 0) {
+                model.getCoordinates().copyLatLon(0, n - 1, lat, lon);
+            }
+            double[] values = sortBy == SORT_LAT ? lat : lon;
+            for (int row = 0; row < n; row++) {
+                keys[row] = sortableBits(values[row]);
+            }
+            break;
+        case SORT_LENGTH:
+            WayGeometry geometry = model.getGeometry();
+            for (int row = 0; row < n; row++) {
+                keys[row] = sortableBits(geometry.getLength(row));
+            }
+            break;
+        case SORT_TAG_COUNT:
+            for (int row = 0; row < n; row++) {
+                Node node = model.getReferredPrimitive(row);
+                keys[row] = node.hasKeys() ? node.keySet().size() : 0;
+            }
+            break;
+        }
+        if (descending) {
+            for (int row = 0; row < n; row++) {
+                if (keys[row] != Long.MAX_VALUE) {
+                    keys[row] = ~keys[row];
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Replies a long which compares like <code>d</code>, NaN as
+     * {@link Long#MAX_VALUE}
+     */
+    private static long sortableBits(double d) {
+        if (Double.isNaN(d))
+            return Long.MAX_VALUE;
+        long bits = Double.doubleToLongBits(d);
+        // negative doubles order the other way round as longs
+        return bits < 0 ? bits ^ Long.MAX_VALUE : bits;
+    }
+
+    /**
+     * Sorts the first <code>count</code> rows in <code>rows</code> by their keys.
+     * Large arrays are sorted in one chunk per core, which are then merged pairwise,
+     * the merges of a round again in parallel.
+     */
+    static void sort(final int[] rows, int count, final long[] keys) {
+        final int[] tmp = new int[count];
+        int chunks = count < PARALLEL_THRESHOLD ? 1
+                : Math.min(Runtime.getRuntime().availableProcessors(), count / (PARALLEL_THRESHOLD / 2));
+        if (chunks <= 1) {
+            mergeSort(rows, tmp, 0, count, keys);
+            return;
+        }
+        int[] bounds = new int[chunks + 1];
+        for (int i = 0; i <= chunks; i++) {
+            bounds[i] = (int) ((long) count * i / chunks);
+        }
+        List<Runnable> jobs = new ArrayList<Runnable>();
+        for (int i = 0; i < chunks; i++) {
+            final int from = bounds[i];
+            final int to = bounds[i + 1];
+            jobs.add(new Runnable() {
+                public void run() {
+                    mergeSort(rows, tmp, from, to, keys);
+                }
+            });
+        }
+        runAll(jobs);
+
+        int[] src = rows;
+        int[] dst = tmp;
+        while (bounds.length > 2) {
+            int runs = bounds.length - 1;
+            int[] merged = new int[(runs + 1) / 2 + 1];
+            jobs.clear();
+            for (int r = 0; r < runs; r += 2) {
+                final int from = bounds[r];
+                final int mid = bounds[r + 1];
+                final int to = r + 2 <= runs ? bounds[r + 2] : mid;
+                final int[] s = src;
+                final int[] d = dst;
+                merged[r / 2] = from;
+                jobs.add(new Runnable() {
+                    public void run() {
+                        merge(s, from, mid, to, d, keys);
+                    }
+                });
+            }
+            merged[merged.length - 1] = count;
+            runAll(jobs);
+            bounds = merged;
+            int[] t = src;
+            src = dst;
+            dst = t;
+        }
+        if (src != rows) {
+            System.arraycopy(src, 0, rows, 0, count);
+        }
+    }
+
+    /**
+     * Runs <code>jobs</code> in parallel and waits for them; the calling thread
+     * runs the last one
+     */
+    private static void runAll(List<Runnable> jobs) {
+        final CountDownLatch done = new CountDownLatch(jobs.size() - 1);
+        for (int i = 0; i < jobs.size() - 1; i++) {
+            final Runnable job = jobs.get(i);
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        job.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        jobs.get(jobs.size() - 1).run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean less(int a, int b, long[] keys) {
+        return keys[a] < keys[b] || keys[a] == keys[b] && a < b;
+    }
+
+    private static void mergeSort(int[] a, int[] tmp, int from, int to, long[] keys) {
+        if (to - from <= 32) {
+            for (int i = from + 1; i < to; i++) {
+                int row = a[i];
+                int j = i - 1;
+                for (; j >= from && less(row, a[j], keys); j--) {
+                    a[j + 1] = a[j];
+                }
+                a[j + 1] = row;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid, keys);
+        mergeSort(a, tmp, mid, to, keys);
+        if (!less(a[mid], a[mid - 1], keys))
+            // already in order
+            return;
+        System.arraycopy(a, from, tmp, from, to - from);
+        merge(tmp, from, mid, to, a, keys);
+    }
+
+    /**
+     * Merges the sorted runs <code>from</code> to <code>mid</code> and
+     * <code>mid</code> to <code>to</code> of <code>src</code> into the same
+     * positions of <code>dst</code>
+     */
+    private static void merge(int[] src, int from, int mid, int to, int[] dst, long[] keys) {
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to) {
+            dst[k++] = less(src[j], src[i], keys) ? src[j++] : src[i++];
+        }
+        System.arraycopy(src, i, dst, k, mid - i);
+        System.arraycopy(src, j, dst, k + mid - i, to - j);
+    }
+}
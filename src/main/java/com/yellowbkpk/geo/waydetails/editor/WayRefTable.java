@@ -5,25 +5,35 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 
 import java.awt.Container;
 import java.awt.Dimension;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.Transferable;
+import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 
 import javax.swing.AbstractAction;
+import javax.swing.DropMode;
 import javax.swing.JComponent;
+import javax.swing.JMenu;
+import javax.swing.JOptionPane;
 import javax.swing.JPopupMenu;
 import javax.swing.JTable;
 import javax.swing.JViewport;
 import javax.swing.KeyStroke;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
+import javax.swing.TransferHandler;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.event.RowSorterEvent;
+import javax.swing.event.RowSorterListener;
 
 import org.openstreetmap.josm.Main;
-import org.openstreetmap.josm.actions.AutoScaleAction;
+import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
 import org.openstreetmap.josm.gui.MapView;
 import org.openstreetmap.josm.gui.MapView.LayerChangeListener;
 import org.openstreetmap.josm.gui.layer.Layer;
@@ -39,6 +49,14 @@ public class WayRefTable extends JTable implements INodeRefModelListener {
     /** the popup menu */
     protected JPopupMenu popupMenu;
     private ZoomToAction zoomToAction;
+    private GoToDistanceAction goToDistanceAction;
+    private NextProblemAction nextProblemAction;
+    private WeakLayerChangeListener zoomToLayerListener;
+
+    /** the viewport the table is shown in, if any */
+    private JViewport viewport;
+
+    private boolean rowSorterListening;
 
     /**
      * constructor
@@ -72,26 +90,151 @@ public class WayRefTable extends JTable implements INodeRefModelListener {
         getActionMap().put("selectNextColumnCell", new SelectNextColumnCellAction());
         getActionMap().put("selectPreviousColumnCell", new SelectPreviousColumnCellAction());
 
+        goToDistanceAction = new GoToDistanceAction();
+        getInputMap(JComponent.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT).put(
+                KeyStroke.getKeyStroke(KeyEvent.VK_G, KeyEvent.CTRL_DOWN_MASK), "goToDistance");
+        getActionMap().put("goToDistance", goToDistanceAction);
+
+        // not Ctrl+E, that opens the editor (see WayDetailsPlugin)
+        nextProblemAction = new NextProblemAction();
+        getInputMap(JComponent.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT).put(
+                KeyStroke.getKeyStroke(KeyEvent.VK_F8, 0), "nextProblem");
+        getActionMap().put("nextProblem", nextProblemAction);
+
+        // reorder the nodes by dragging the selected rows
+        //
+        setDragEnabled(true);
+        setDropMode(DropMode.INSERT_ROWS);
+        setTransferHandler(new RowTransferHandler());
+
         addMouseListener(new PopupListener());
         addMouseListener(new DblClickHandler());
+        getTableHeader().addMouseListener(new HeaderClickHandler());
     }
 
+    /**
+     * Fills the width of the enclosing viewport, which is looked up once when the
+     * table is added to its parents rather than on every layout
+     */
     @Override
     public Dimension getPreferredSize(){
+        Dimension d = super.getPreferredSize();
+        if (viewport != null) {
+            d.width = viewport.getSize().width;
+        }
+        return d;
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
         Container c = getParent();
         while(c != null && ! (c instanceof JViewport)) {
             c = c.getParent();
         }
-        if (c != null) {
-            Dimension d = super.getPreferredSize();
-            d.width = c.getSize().width;
-            return d;
-        }
-        return super.getPreferredSize();
+        viewport = (JViewport) c;
+    }
+
+    @Override
+    public void removeNotify() {
+        viewport = null;
+        super.removeNotify();
     }
 
     public void makeMemberVisible(int index) {
-        scrollRectToVisible(getCellRect(index, 0, true));
+        int row = convertRowIndexToView(index);
+        if (row < 0)
+            // filtered out
+            return;
+        scrollRectToVisible(getCellRect(row, 0, true));
+    }
+
+    public void historyCleared() {
+        // the editor tells the user, see WayEditor
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* Sorting and filtering                                                       */
+    /* --------------------------------------------------------------------------- */
+
+    /**
+     * Sorts the rows by <code>sortBy</code>, one of the <code>SORT_*</code>
+     * constants of {@link WayRefRowSorter}, without changing the order of the nodes
+     */
+    public void sortRows(int sortBy, boolean descending) {
+        RowRanges selected = getMemberTableModel().getSelectedRanges();
+        getMemberTableModel().getRowSorter().setSort(sortBy, descending);
+        updateRowSorter(selected);
+    }
+
+    /**
+     * Only shows the nodes whose id starts with <code>filter</code> if it is a
+     * number, or else the nodes which have the tag key <code>filter</code>. An empty
+     * filter shows all nodes again.
+     */
+    public void filterRows(String filter) {
+        RowRanges selected = getMemberTableModel().getSelectedRanges();
+        WayRefRowSorter sorter = getMemberTableModel().getRowSorter();
+        filter = filter.trim();
+        if (filter.length() == 0) {
+            sorter.clearFilter();
+        } else if (filter.matches("-?\\d+")) {
+            sorter.setIdPrefixFilter(filter);
+        } else {
+            sorter.setTagKeyFilter(filter);
+        }
+        updateRowSorter(selected);
+    }
+
+    /**
+     * Installs the sorter of the model while it sorts or filters the rows and
+     * selects <code>selected</code> again. In the order of the way the table works
+     * without a sorter, which keeps JTable on its cheaper paths for model changes.
+     */
+    protected void updateRowSorter(RowRanges selected) {
+        WayRefRowSorter sorter = getMemberTableModel().getRowSorter();
+        if (sorter.isIdentity() == (getRowSorter() == null))
+            return;
+        if (!rowSorterListening) {
+            rowSorterListening = true;
+            sorter.addRowSorterListener(new RowSorterListener() {
+                public void sorterChanged(RowSorterEvent e) {
+                    if (e.getType() == RowSorterEvent.Type.SORTED && getRowSorter() != null) {
+                        // the header went back to the order of the way
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                updateRowSorter(getMemberTableModel().getSelectedRanges());
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        // JTable clears the selection when the sorter changes
+        setRowSorter(sorter.isIdentity() ? null : sorter);
+        getMemberTableModel().setSelectedRanges(selected);
+    }
+
+    /**
+     * Selects and shows the node nearest to the point <code>meters</code> along the
+     * way
+     *
+     * @return false if the distances along the way aren't computed yet
+     */
+    public boolean goToDistance(double meters) {
+        WayGeometry geometry = getMemberTableModel().getGeometry();
+        int row = geometry.findRowAtDistance(meters);
+        if (row < 0)
+            return false;
+        // the point lies on the segment ending at row; pick its nearer end
+        if (row > 0 && meters - geometry.getDistance(row - 1) < geometry.getDistance(row) - meters) {
+            row--;
+        }
+        RowRanges ranges = new RowRanges(1);
+        ranges.add(row, row);
+        // which also scrolls the row into view
+        getMemberTableModel().setSelectedRanges(ranges);
+        return true;
     }
 
     /**
@@ -157,15 +300,35 @@ public class WayRefTable extends JTable implements INodeRefModelListener {
         if (popupMenu == null) {
             popupMenu = new JPopupMenu();
             zoomToAction = new ZoomToAction();
-            MapView.addLayerChangeListener(zoomToAction);
+            zoomToLayerListener = WeakLayerChangeListener.add(zoomToAction);
             getSelectionModel().addListSelectionListener(zoomToAction);
             popupMenu.add(zoomToAction);
+            popupMenu.add(goToDistanceAction);
+            popupMenu.add(nextProblemAction);
+            popupMenu.addSeparator();
+            JMenu sortMenu = new JMenu(tr("Sort by"));
+            sortMenu.add(new SortAction(WayRefRowSorter.SORT_NONE, tr("Way order")));
+            sortMenu.add(new SortAction(WayRefRowSorter.SORT_ID, tr("Node id")));
+            sortMenu.add(new SortAction(WayRefRowSorter.SORT_LAT, tr("Latitude")));
+            sortMenu.add(new SortAction(WayRefRowSorter.SORT_LON, tr("Longitude")));
+            sortMenu.add(new SortAction(WayRefRowSorter.SORT_LENGTH, tr("Segment length")));
+            sortMenu.add(new SortAction(WayRefRowSorter.SORT_TAG_COUNT, tr("Tag count")));
+            popupMenu.add(sortMenu);
+            popupMenu.add(new FilterAction());
         }
         return popupMenu;
     }
 
+    /**
+     * Removes the listeners this table registered outside of its own component tree.
+     * Called when the editor is closed.
+     */
     public void unlinkAsListener() {
-        MapView.removeLayerChangeListener(zoomToAction);
+        if (zoomToLayerListener != null) {
+            MapView.removeLayerChangeListener(zoomToLayerListener);
+            zoomToLayerListener = null;
+        }
+        getMemberTableModel().removeMemberModelListener(this);
     }
 
     class PopupListener extends MouseAdapter {
@@ -187,26 +350,48 @@ public class WayRefTable extends JTable implements INodeRefModelListener {
     }
 
     class ZoomToAction extends AbstractAction implements LayerChangeListener, ListSelectionListener {
+        /** the bounds of the selected rows, see {@link RowBounds#getBounds} */
+        private final double[] bounds = new double[4];
+        private boolean hasBounds;
+        private boolean boundsValid;
+        private int boundsChangeCount;
+
         public ZoomToAction() {
             putValue(NAME, tr("Zoom to"));
-            putValue(SHORT_DESCRIPTION, tr("Zoom to the object the first selected member refers to"));
+            putValue(SHORT_DESCRIPTION, tr("Zoom to the selected members"));
             updateEnabledState();
         }
 
         public void actionPerformed(ActionEvent e) {
             if (! isEnabled())
                 return;
-            int rows[] = getSelectedRows();
-            if (rows == null || rows.length == 0)
+            updateBounds();
+            if (!hasBounds)
+                return;
+            // zoom without selecting the nodes, the selection of the layer is left alone
+            BoundingXYVisitor v = new BoundingXYVisitor();
+            v.visit(new EastNorth(bounds[0], bounds[1]));
+            v.visit(new EastNorth(bounds[2], bounds[3]));
+            v.enlargeBoundingBox();
+            Main.map.mapView.recalculateCenterScale(v);
+        }
+
+        /**
+         * Looks the bounds of the selected rows up again if the selection or the
+         * coordinates changed since. Costs a few lookups in the {@link RowBounds} of
+         * the model per selected range.
+         */
+        protected void updateBounds() {
+            RowBounds rowBounds = getMemberTableModel().getRowBounds();
+            if (boundsValid && boundsChangeCount == rowBounds.getChangeCount())
                 return;
-            int row = rows[0];
-            OsmPrimitive primitive = getMemberTableModel().getReferredPrimitive(row);
-            layer.data.setSelected(primitive);
-            AutoScaleAction.autoScale("selection");
+            hasBounds = rowBounds.getBounds(getMemberTableModel().getSelectedRanges(), bounds);
+            boundsChangeCount = rowBounds.getChangeCount();
+            boundsValid = true;
         }
 
         protected void updateEnabledState() {
-            if (Main.main == null || Main.main.getEditLayer() != layer) {
+            if (Main.main == null || Main.main.getEditLayer() != layer || Main.map == null) {
                 setEnabled(false);
                 putValue(SHORT_DESCRIPTION, tr("Zooming disabled because layer of this relation is not active"));
                 return;
@@ -216,11 +401,20 @@ public class WayRefTable extends JTable implements INodeRefModelListener {
                 putValue(SHORT_DESCRIPTION, tr("Zooming disabled because there is no selected member"));
                 return;
             }
+            updateBounds();
+            if (!hasBounds) {
+                setEnabled(false);
+                putValue(SHORT_DESCRIPTION, tr("Zooming disabled because the selected members have no coordinates"));
+                return;
+            }
             setEnabled(true);
-            putValue(SHORT_DESCRIPTION, tr("Zoom to the object the first selected member refers to"));
+            putValue(SHORT_DESCRIPTION, tr("Zoom to the selected members"));
         }
 
         public void valueChanged(ListSelectionEvent e) {
+            if (e.getValueIsAdjusting())
+                return;
+            boundsValid = false;
             updateEnabledState();
         }
 
@@ -237,6 +431,198 @@ public class WayRefTable extends JTable implements INodeRefModelListener {
         }
     }
 
+    /**
+     * Asks for a distance along the way in kilometres and selects the node nearest
+     * to it
+     */
+    class GoToDistanceAction extends AbstractAction {
+        public GoToDistanceAction() {
+            putValue(NAME, tr("Go to distance..."));
+            putValue(SHORT_DESCRIPTION, tr("Select the node at a distance along the way"));
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            WayGeometry geometry = getMemberTableModel().getGeometry();
+            double total = geometry.getTotalLength();
+            if (Double.isNaN(total)) {
+                JOptionPane.showMessageDialog(WayRefTable.this,
+                        tr("The lengths of the segments are still being computed. Please try again in a moment."),
+                        tr("Information"), JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            String input = JOptionPane.showInputDialog(WayRefTable.this,
+                    tr("Distance along the way in km (0 to {0}):", Math.round(total / 10) / 100.0));
+            if (input == null || input.trim().length() == 0)
+                return;
+            double km;
+            try {
+                km = Double.parseDouble(input.trim().replace(',', '.'));
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(WayRefTable.this,
+                        tr("''{0}'' is not a valid distance.", input), tr("Error"), JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            goToDistance(km * 1000);
+        }
+    }
+
+    /**
+     * Selects the next node after the selected one where the validation found a
+     * problem
+     */
+    class NextProblemAction extends AbstractAction {
+        public NextProblemAction() {
+            putValue(NAME, tr("Next problem"));
+            putValue(SHORT_DESCRIPTION, tr("Select the next node with a problem (F8)"));
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            WayRefTableModel model = getMemberTableModel();
+            RowRanges selected = model.getSelectedRanges();
+            int row = model.getValidator().findNextProblem(selected.isEmpty() ? -1 : selected.first());
+            if (row < 0) {
+                JOptionPane.showMessageDialog(WayRefTable.this,
+                        model.getValidator().isValidating()
+                        ? tr("No problems found so far. The way is still being validated.")
+                        : tr("No problems found."),
+                        tr("Information"), JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            RowRanges ranges = new RowRanges(1);
+            ranges.add(row, row);
+            // which also scrolls the row into view
+            model.setSelectedRanges(ranges);
+        }
+    }
+
+    /**
+     * Moves the dragged rows to where they are dropped, as one block, within this
+     * table only. The transferable carries the dragged ranges rather than the nodes.
+     */
+    class RowTransferHandler extends TransferHandler {
+        private final DataFlavor rowsFlavor = new DataFlavor(RowRanges.class, "rows");
+        private RowRanges dragged;
+
+        @Override
+        public int getSourceActions(JComponent c) {
+            return MOVE;
+        }
+
+        @Override
+        protected Transferable createTransferable(JComponent c) {
+            dragged = getMemberTableModel().getSelectedRanges();
+            if (dragged.isEmpty()) {
+                dragged = null;
+                return null;
+            }
+            final RowRanges rows = dragged;
+            return new Transferable() {
+                public DataFlavor[] getTransferDataFlavors() {
+                    return new DataFlavor[] { rowsFlavor };
+                }
+
+                public boolean isDataFlavorSupported(DataFlavor flavor) {
+                    return rowsFlavor.equals(flavor);
+                }
+
+                public Object getTransferData(DataFlavor flavor) throws UnsupportedFlavorException {
+                    if (!isDataFlavorSupported(flavor))
+                        throw new UnsupportedFlavorException(flavor);
+                    return rows;
+                }
+            };
+        }
+
+        @Override
+        public boolean canImport(TransferSupport support) {
+            // a drop position only means something in the order of the way
+            return dragged != null && getRowSorter() == null && support.isDrop() && support.getComponent() == WayRefTable.this
+            && support.isDataFlavorSupported(rowsFlavor);
+        }
+
+        @Override
+        public boolean importData(TransferSupport support) {
+            if (!canImport(support))
+                return false;
+            int row = ((JTable.DropLocation) support.getDropLocation()).getRow();
+            WayRefTableModel model = getMemberTableModel();
+            row = row < 0 || row >= getRowCount() ? model.getRowCount() : convertRowIndexToModel(row);
+            // the block starts where the row is once the dragged rows are taken out
+            int before = 0;
+            for (int i = 0; i < dragged.size() && dragged.start(i) < row; i++) {
+                before += Math.min(dragged.end(i), row - 1) - dragged.start(i) + 1;
+            }
+            if (!model.canMoveRowsTo(dragged, row - before))
+                return false;
+            model.moveRowsTo(dragged, row - before);
+            return true;
+        }
+
+        @Override
+        protected void exportDone(JComponent source, Transferable data, int action) {
+            dragged = null;
+        }
+    }
+
+    /**
+     * Sorts the rows by a key, ascending; a second time descending
+     */
+    class SortAction extends AbstractAction {
+        private final int sortBy;
+
+        public SortAction(int sortBy, String name) {
+            this.sortBy = sortBy;
+            putValue(NAME, name);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            WayRefRowSorter sorter = getMemberTableModel().getRowSorter();
+            sortRows(sortBy, sorter.getSortBy() == sortBy && !sorter.isDescending());
+        }
+    }
+
+    /**
+     * Asks for a node id prefix or a tag key and only shows the matching nodes
+     */
+    class FilterAction extends AbstractAction {
+        public FilterAction() {
+            putValue(NAME, tr("Filter..."));
+            putValue(SHORT_DESCRIPTION, tr("Only show the nodes with an id prefix or a tag key"));
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            String input = JOptionPane.showInputDialog(WayRefTable.this,
+                    tr("Node id prefix or tag key (empty to show all nodes):"));
+            if (input == null)
+                return;
+            filterRows(input);
+        }
+    }
+
+    /**
+     * Sorts by a column when its header is clicked while the rows are in the order
+     * of the way. Once the sorter is installed, the header passes the clicks on to
+     * it. Deferred, so that the header doesn't pass this click on as well.
+     */
+    class HeaderClickHandler extends MouseAdapter {
+        @Override
+        public void mouseClicked(MouseEvent e) {
+            if (getRowSorter() != null || !SwingUtilities.isLeftMouseButton(e))
+                return;
+            int column = getTableHeader().columnAtPoint(e.getPoint());
+            if (column < 0)
+                return;
+            final int modelColumn = convertColumnIndexToModel(column);
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    RowRanges selected = getMemberTableModel().getSelectedRanges();
+                    getMemberTableModel().getRowSorter().toggleSortOrder(modelColumn);
+                    updateRowSorter(selected);
+                }
+            });
+        }
+    }
+
     protected WayRefTableModel getMemberTableModel() {
         return (WayRefTableModel) getModel();
     }
@@ -245,14 +631,14 @@ public class WayRefTable extends JTable implements INodeRefModelListener {
         protected void setSelection(MouseEvent e) {
             int row = rowAtPoint(e.getPoint());
             if (row < 0) return;
-            OsmPrimitive primitive = getMemberTableModel().getReferredPrimitive(row);
+            OsmPrimitive primitive = getMemberTableModel().getReferredPrimitive(convertRowIndexToModel(row));
             getMemberTableModel().getLayer().data.setSelected(primitive.getPrimitiveId());
         }
 
         protected void addSelection(MouseEvent e) {
             int row = rowAtPoint(e.getPoint());
             if (row < 0) return;
-            OsmPrimitive primitive = getMemberTableModel().getReferredPrimitive(row);
+            OsmPrimitive primitive = getMemberTableModel().getReferredPrimitive(convertRowIndexToModel(row));
             getMemberTableModel().getSelectionModel().addSelectionInterval(row, row);
             getMemberTableModel().getLayer().data.addSelected(primitive.getPrimitiveId());
 
@@ -1,10 +1,9 @@
 // License: GPL. For details, see LICENSE file.
 package com.yellowbkpk.geo.waydetails.editor;
 
-import static org.openstreetmap.josm.tools.I18n.tr;
-
 import java.awt.Color;
 import java.awt.Component;
+import java.awt.Rectangle;
 
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
@@ -24,8 +23,10 @@ public class WayRefTableCellRenderer extends JLabel implements TableCellRenderer
     public final static Color BGCOLOR_NOT_IN_OPPOSITE = new Color(255,197,197);
     public final static Color BGCOLOR_IN_OPPOSITE = new Color(255,234,213);
     public final static Color BGCOLOR_SELECTED = new Color(143,170,255);
+    public final static Color BGCOLOR_IN_JOSM_SELECTION = new Color(235,255,177);
 
     private ImageIcon nodeIcon;
+    private final NodeLabelCache labels = new NodeLabelCache();
 
     public WayRefTableCellRenderer(){
         setOpaque(true);
@@ -33,21 +34,27 @@ public class WayRefTableCellRenderer extends JLabel implements TableCellRenderer
         setIcon(nodeIcon);
     }
 
-    protected void renderNode(WayRefTableModel model, Long nodeId, int row, boolean isSelected) {
-        String text = "";
+    /**
+     * Renders the node in row <code>row</code> of <code>model</code>. Reads the
+     * node id straight from the model and takes the label from the cache, so that
+     * rendering a cell doesn't allocate.
+     */
+    protected void renderNode(WayRefTableModel model, int row, boolean isSelected) {
         Color bgColor = Color.WHITE;
-        if (nodeId == null) {
-            text = "";
+        if (row < 0 || row >= model.getRowCount()) {
+            setText("");
             bgColor = BGCOLOR_EMPTY_ROW;
             setIcon(null);
         } else {
-            text = tr("Node {0}", nodeId.toString());
+            setText(labels.getLabel(model.getNodeId(row)));
             setIcon(nodeIcon);
+            if (!isSelected && model.isInJosmSelection(row)) {
+                bgColor = BGCOLOR_IN_JOSM_SELECTION;
+            }
         }
         if (isSelected) {
             bgColor = BGCOLOR_SELECTED;
         }
-        setText(text);
         setBackground(bgColor);
     }
 
@@ -57,11 +64,31 @@ public class WayRefTableCellRenderer extends JLabel implements TableCellRenderer
             return this;
 
         WayRefTableModel model = getNodeListTableModel(table);
-        Long nodeId = (Long)value;
-        renderNode(model, nodeId, row, isSelected);
+        renderNode(model, table.convertRowIndexToModel(row), isSelected);
         return this;
     }
 
+    /*
+     * Overridden for performance reasons, like in DefaultTableCellRenderer: the
+     * renderer is only painted as a rubber stamp and never needs to be laid out
+     * or repainted itself.
+     */
+
+    @Override
+    public void validate() {}
+
+    @Override
+    public void revalidate() {}
+
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {}
+
+    @Override
+    public void repaint(Rectangle r) {}
+
+    @Override
+    public void repaint() {}
+
     protected WayRefTableModel getNodeListTableModel(JTable table) {
         return (WayRefTableModel) table.getModel();
     }
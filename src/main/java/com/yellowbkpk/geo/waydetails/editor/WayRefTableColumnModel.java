@@ -22,22 +22,28 @@ public class WayRefTableColumnModel extends DefaultTableColumnModel {
         col.setCellRenderer(new WayRefTableCellRenderer());
 //        col.setCellEditor(new MemberRoleCellEditor(ds));
         addColumn(col);
-//
-//        // column 1 - the member
-//        col = new TableColumn(1);
-//        col.setHeaderValue(tr("Refers to"));
-//        col.setResizable(true);
-//        col.setPreferredWidth(300);
-//        // col.setCellRenderer(new OsmPrimitivRenderer());
-//        col.setCellRenderer(new MemberTableMemberCellRenderer());
-//        addColumn(col);
-//
-//        // column 2 -
-//        col = new TableColumn(2);
-//        col.setHeaderValue("");
-//        col.setResizable(false);
-//        col.setPreferredWidth(20);
-//        col.setCellRenderer(new MemberTableLinkedCellRenderer());
-//        addColumn(col);
+
+        // columns 1 to 4 - the geometry of the way at the node
+        addColumn(createGeometryColumn(WayRefTableModel.COLUMN_LENGTH, tr("Length"), " m"));
+        addColumn(createGeometryColumn(WayRefTableModel.COLUMN_DISTANCE, tr("Distance"), " m"));
+        addColumn(createGeometryColumn(WayRefTableModel.COLUMN_BEARING, tr("Bearing"), "\u00b0"));
+        addColumn(createGeometryColumn(WayRefTableModel.COLUMN_TURN, tr("Turn"), "\u00b0"));
+
+        // column 5 - the problems found at the node
+        col = new TableColumn(WayRefTableModel.COLUMN_STATUS);
+        col.setHeaderValue(tr("Status"));
+        col.setResizable(true);
+        col.setPreferredWidth(70);
+        col.setCellRenderer(new WayValidationCellRenderer());
+        addColumn(col);
+    }
+
+    private TableColumn createGeometryColumn(int modelIndex, String header, String unit) {
+        TableColumn col = new TableColumn(modelIndex);
+        col.setHeaderValue(header);
+        col.setResizable(true);
+        col.setPreferredWidth(70);
+        col.setCellRenderer(new WayGeometryCellRenderer(modelIndex, unit));
+        return col;
     }
 }
@@ -3,6 +3,7 @@ package com.yellowbkpk.geo.waydetails.editor;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -18,7 +19,7 @@ import javax.swing.table.AbstractTableModel;
 
 import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.data.SelectionChangedListener;
-import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.osm.RelationMember;
@@ -37,12 +38,88 @@ import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 
 public class WayRefTableModel extends AbstractTableModel implements TableModelListener, SelectionChangedListener, DataSetListener {
 
+    public static final int COLUMN_NODE = 0;
+    public static final int COLUMN_LENGTH = 1;
+    public static final int COLUMN_DISTANCE = 2;
+    public static final int COLUMN_BEARING = 3;
+    public static final int COLUMN_TURN = 4;
+    public static final int COLUMN_STATUS = 5;
+
+    /**
+     * edits of more ranges than this are done in one pass over the nodes and
+     * reported as one data change, instead of one event per range
+     */
+    static final int BULK_EDIT_RANGES = 32;
+
     /**
      * data of the table model: The list of members and the cached WayConnectionType of each member.
      **/
     private Way way;
     private List<WayConnectionType> connectionType = null;
 
+    /**
+     * the nodes being edited and their ids. Loaded from the way when the editor
+     * opens; the way itself is only changed when the edits are applied, see
+     * {@link #getNodes()}.
+     */
+    private final NodeBuffer nodes = new NodeBuffer();
+
+    /**
+     * the nodes of the way the edits are based on: the nodes when they were loaded,
+     * or when the edits were last applied. The way changed outside of the editor if
+     * its nodes differ from these.
+     */
+    private List<Node> baseNodes;
+
+    /** true if the nodes were edited since they were loaded from the way */
+    private boolean modified;
+    private int editCount;
+
+    /** the local undo/redo stack of the edits of the nodes */
+    private final EditHistory history = new EditHistory();
+
+    /**
+     * index from node ids to the rows they occur in. A node occurs in more than
+     * one row in closed ways and ways which touch themselves. Rebuilt lazily after
+     * the nodes changed.
+     */
+    private final LongIntMultiMap rowIndex = new LongIntMultiMap();
+    private boolean rowIndexValid;
+
+    /**
+     * the rows whose node is selected in the layer. Kept to repaint only the rows
+     * whose selection state changed; <code>scratchRows</code> is swapped in on
+     * every selection change to avoid allocating a new set.
+     */
+    private BitSet josmSelectedRows = new BitSet();
+    private BitSet scratchRows = new BitSet();
+    private boolean josmSelectedRowsValid;
+
+    /** the coordinates of the nodes in row order */
+    private final CoordinateCache coordinates;
+
+    /** segment lengths, bearings and turn angles, computed in the background */
+    private final WayGeometry geometry;
+
+    /** the problems of the way, found in the background */
+    private final WayValidator validator;
+
+    /** sorts and filters the rows of the table, created on first use */
+    private WayRefRowSorter rowSorter;
+
+    /** the bounds of ranges of rows, created on first use */
+    private RowBounds rowBounds;
+
+    /** finds nodes by id or tag, created on first use */
+    private NodeSearchIndex searchIndex;
+
+    /** the spatial index of the segments, created on first use */
+    private SegmentIndex segmentIndex;
+
+    /** batches the dataset events before they refresh the table */
+    private final DataSetEventCoalescer events;
+    private final BitSet dirtyRows = new BitSet();
+
     private DefaultListSelectionModel listSelectionModel;
     private CopyOnWriteArrayList<INodeRefModelListener> listeners;
     private OsmDataLayer layer;
@@ -54,21 +131,113 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
         this.way = way;
         listeners = new CopyOnWriteArrayList<INodeRefModelListener>();
         this.layer = layer;
+        this.events = new DataSetEventCoalescer(this);
         addTableModelListener(this);
+        reloadNodes();
+        this.coordinates = new CoordinateCache(this);
+        this.geometry = new WayGeometry(this);
+        this.validator = new WayValidator(this);
     }
 
     public OsmDataLayer getLayer() {
         return layer;
     }
 
+    /**
+     * Starts listening to the dataset of the layer and to the selection, through the
+     * {@link LayerEventDispatcher} of the layer
+     */
     public void register() {
-        DataSet.addSelectionListener(this);
-        getLayer().data.addDataSetListener(this);
+        LayerEventDispatcher.register(this);
     }
 
     public void unregister() {
-        DataSet.removeSelectionListener(this);
-        getLayer().data.removeDataSetListener(this);
+        LayerEventDispatcher.unregister(this);
+        events.stop();
+        geometry.dispose();
+        validator.dispose();
+        if (segmentIndex != null) {
+            segmentIndex.dispose();
+            segmentIndex = null;
+        }
+    }
+
+    public WayGeometry getGeometry() {
+        return geometry;
+    }
+
+    public WayValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Replies the sorter of the rows of the table. The rows of the selection model
+     * are rows of the table, so they are translated through the sorter whenever it
+     * sorts or filters the rows.
+     */
+    public WayRefRowSorter getRowSorter() {
+        if (rowSorter == null) {
+            rowSorter = new WayRefRowSorter(this);
+        }
+        return rowSorter;
+    }
+
+    /**
+     * Replies the bounds of ranges of rows, in projected coordinates
+     */
+    public RowBounds getRowBounds() {
+        if (rowBounds == null) {
+            rowBounds = new RowBounds(this);
+        }
+        return rowBounds;
+    }
+
+    /**
+     * Replies the index to find the rows of nodes by id or by tag
+     */
+    public NodeSearchIndex getSearchIndex() {
+        if (searchIndex == null) {
+            searchIndex = new NodeSearchIndex(this);
+        }
+        return searchIndex;
+    }
+
+    /**
+     * Replies true if the rows of the table aren't the rows of this model
+     */
+    private boolean isViewPermuted() {
+        return rowSorter != null && !rowSorter.isIdentity();
+    }
+
+    /**
+     * Replies the spatial index of the segments of the way
+     */
+    public SegmentIndex getSegmentIndex() {
+        if (segmentIndex == null) {
+            segmentIndex = new SegmentIndex(this);
+        }
+        return segmentIndex;
+    }
+
+    /**
+     * Replies the coordinates of the nodes, in row order
+     */
+    public CoordinateCache getCoordinates() {
+        return coordinates;
+    }
+
+    /**
+     * Updates the coordinates, the geometry and the validation before any other listener learns
+     * about the changed rows, so that listeners can read them right away
+     */
+    @Override
+    public void fireTableChanged(TableModelEvent e) {
+        if (validator != null) {
+            coordinates.tableChanged(e);
+            geometry.tableChanged(e);
+            validator.tableChanged(e);
+        }
+        super.fireTableChanged(e);
     }
 
     /* --------------------------------------------------------------------------- */
@@ -76,24 +245,53 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
     /* --------------------------------------------------------------------------- */
     public void selectionChanged(Collection<? extends OsmPrimitive> newSelection) {
         if (Main.main.getEditLayer() != this.layer) return;
-        // just trigger a repaint
-        Collection<Node> sel = getSelectedMembers();
-        fireTableDataChanged();
-        setSelectedMembers(sel);
+        events.selectionChanged(newSelection);
+    }
+
+    /**
+     * Repaints the rows whose node was selected or deselected in the layer.
+     * Called with the latest selection of a batch of selection changes.
+     */
+    void refreshJosmSelection(Collection<? extends OsmPrimitive> newSelection) {
+        BitSet changed = josmSelectedRows;
+        computeJosmSelectedRows(newSelection, scratchRows);
+        josmSelectedRows = scratchRows;
+        scratchRows = changed;
+        if (!josmSelectedRowsValid) {
+            josmSelectedRowsValid = true;
+            fireColumnUpdated(0, nodes.size() - 1, COLUMN_NODE);
+            return;
+        }
+        changed.xor(josmSelectedRows);
+        fireRowsUpdated(changed, COLUMN_NODE);
     }
 
     /* --------------------------------------------------------------------------- */
     /* Interface DataSetListener                                                   */
     /* --------------------------------------------------------------------------- */
     public void dataChanged(DataChangedEvent event) {
-        // just trigger a repaint - the display name of the relation members may
-        // have changed
-        Collection<Node> sel = getSelectedMembers();
-        fireTableDataChanged();
-        setSelectedMembers(sel);
+        events.dataChanged();
     }
 
-    public void nodeMoved(NodeMovedEvent event) {/* ignore */}
+    /**
+     * Refreshes the whole table after one or more data changes
+     */
+    void refreshData() {
+        if (modified || nodes.contentEquals(way.getNodes())) {
+            // just trigger a repaint - the display name of the nodes or their
+            // selection state may have changed. Edited nodes are kept, even if
+            // they are out of sync with the way in the dataset now
+            josmSelectedRowsValid = false;
+            fireAllRowsUpdated();
+            return;
+        }
+        // the way itself has changed (i.e. after an undo)
+        reloadFromWay();
+    }
+
+    public void nodeMoved(NodeMovedEvent event) {
+        events.nodeMoved(event.getNode().getUniqueId());
+    }
     public void primtivesAdded(PrimitivesAddedEvent event) {/* ignore */}
 
     public void primtivesRemoved(PrimitivesRemovedEvent event) {
@@ -111,21 +309,235 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
     public void tagsChanged(TagsChangedEvent event) {
         // just refresh the respective table cells
         //
-        Collection<Node> sel = getSelectedMembers();
-        List<Node> nodes = way.getNodes();
-        for (int i=0; i < nodes.size();i++) {
-            if (nodes.get(i) == event.getPrimitive()) {
-                fireTableCellUpdated(i, 1 /* the column with the primitive name */);
+        OsmPrimitive primitive = event.getPrimitive();
+        if (primitive instanceof Node) {
+            events.tagsChanged(primitive.getUniqueId());
+        }
+    }
+
+    /**
+     * Repaints the rows of the nodes whose tags changed
+     *
+     * @param nodeIds the unique ids of the nodes, may contain duplicates
+     * @param offset the index of the first id in <code>nodeIds</code>
+     * @param count the number of ids
+     */
+    void refreshTaggedNodes(long[] nodeIds, int offset, int count) {
+        collectRows(nodeIds, offset, count);
+        if (searchIndex != null && !dirtyRows.isEmpty()) {
+            searchIndex.tagsChanged();
+        }
+        fireRowsUpdated(dirtyRows, COLUMN_NODE);
+    }
+
+    /**
+     * Refreshes the rows of the nodes which moved, including their geometry
+     *
+     * @param nodeIds the unique ids of the nodes, may contain duplicates
+     * @param offset the index of the first id in <code>nodeIds</code>
+     * @param count the number of ids
+     */
+    void refreshMovedNodes(long[] nodeIds, int offset, int count) {
+        collectRows(nodeIds, offset, count);
+        fireRowsUpdated(dirtyRows, TableModelEvent.ALL_COLUMNS);
+    }
+
+    private void collectRows(long[] nodeIds, int offset, int count) {
+        LongIntMultiMap index = getRowIndex();
+        dirtyRows.clear();
+        for (int i = offset; i < offset + count; i++) {
+            for (int e = index.firstEntry(nodeIds[i]); e != LongIntMultiMap.NONE; e = index.nextEntry(e)) {
+                dirtyRows.set(index.valueAt(e));
             }
         }
-        setSelectedMembers(sel);
     }
 
-    public void wayNodesChanged(WayNodesChangedEvent event) {/* ignore */}
+    public void wayNodesChanged(WayNodesChangedEvent event) {
+        if (event.getChangedWay() != way)
+            return;
+        // may arrive off the EDT. Delivered as a data change, which reloads the nodes
+        // on the EDT unless they were edited; edited nodes are out of sync with the
+        // way in the dataset until the changes in the editor are applied.
+        events.dataChanged();
+    }
+
+    /**
+     * Loads the nodes again after the way changed in the dataset, keeping the
+     * selected nodes selected. The local undo/redo history refers to rows of the old
+     * nodes and can't be replayed on the new ones, so it is dropped and the listeners
+     * are told if it wasn't empty.
+     */
+    private void reloadFromWay() {
+        boolean hadHistory = history.canUndo() || history.canRedo();
+        Collection<Node> sel = getSelectedMembers();
+        reloadNodes();
+        fireTableDataChanged();
+        setSelectedMembers(sel);
+        if (hadHistory) {
+            for (INodeRefModelListener listener : listeners) {
+                listener.historyCleared();
+            }
+        }
+    }
 
     public void otherDatasetChange(AbstractDatasetChangedEvent event) {/* ignore */}
     /* --------------------------------------------------------------------------- */
 
+    /**
+     * Loads the nodes from the way, dropping all edits
+     */
+    protected void reloadNodes() {
+        baseNodes = way.getNodes();
+        nodes.setAll(baseNodes);
+        history.clear();
+        modified = false;
+        rowIndexValid = false;
+        josmSelectedRowsValid = false;
+    }
+
+    /**
+     * Invoked after the nodes were edited
+     */
+    private void nodesEdited() {
+        modified = true;
+        editCount++;
+        rowIndexValid = false;
+        josmSelectedRowsValid = false;
+    }
+
+    public Way getWay() {
+        return way;
+    }
+
+    /**
+     * Replies true if the nodes were edited since they were loaded from the way or
+     * since the edits were last applied
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Replies the edited nodes, to be written to the way when the edits are applied
+     *
+     * @return a new list with the edited nodes
+     */
+    public List<Node> getNodes() {
+        return nodes.toList();
+    }
+
+    /**
+     * Replies a number which changes whenever the nodes are edited
+     */
+    public int getEditCount() {
+        return editCount;
+    }
+
+    /**
+     * Invoked after the edits were written to the way
+     *
+     * @param editCount the edit count of the nodes which were written
+     */
+    public void applied(int editCount) {
+        baseNodes = way.getNodes();
+        if (this.editCount == editCount) {
+            modified = false;
+        }
+    }
+
+    /**
+     * Replies true if the nodes of the way changed in the dataset since the edits
+     * started, i.e. since the nodes were loaded or last applied
+     */
+    public boolean isWayChangedOutside() {
+        return !way.getNodes().equals(baseNodes);
+    }
+
+    /**
+     * Replies the rows of the nodes which were deleted from the dataset while the
+     * editor was open
+     */
+    public RowRanges getDeletedRows() {
+        BitSet deleted = new BitSet();
+        for (int row = 0; row < nodes.size(); row++) {
+            if (nodes.get(row).isDeleted()) {
+                deleted.set(row);
+            }
+        }
+        return RowRanges.fromBitSet(deleted);
+    }
+
+    private void computeJosmSelectedRows(Collection<? extends OsmPrimitive> selection, BitSet rows) {
+        rows.clear();
+        LongIntMultiMap index = getRowIndex();
+        for (OsmPrimitive p : selection) {
+            if (!(p instanceof Node)) {
+                continue;
+            }
+            for (int e = index.firstEntry(p.getUniqueId()); e != LongIntMultiMap.NONE; e = index.nextEntry(e)) {
+                rows.set(index.valueAt(e));
+            }
+        }
+    }
+
+    /**
+     * Fires a {@link TableModelEvent} for every run of consecutive rows in
+     * <code>rows</code>. Unlike {@link #fireTableDataChanged()} this keeps the
+     * selection and the other row state of the table.
+     */
+    protected void fireRowsUpdated(BitSet rows, int column) {
+        for (int first = rows.nextSetBit(0); first >= 0 && first < nodes.size();) {
+            int end = Math.min(rows.nextClearBit(first), nodes.size());
+            fireTableChanged(new TableModelEvent(this, first, end - 1, column));
+            first = rows.nextSetBit(end);
+        }
+    }
+
+    /**
+     * Notifies the listeners that the values in <code>column</code> of the rows
+     * <code>first</code> to <code>last</code> changed. Listeners tracking the
+     * nodes of the rows ignore these events.
+     */
+    void fireColumnUpdated(int first, int last, int column) {
+        if (first <= last) {
+            fireTableChanged(new TableModelEvent(this, first, last, column));
+        }
+    }
+
+    protected void fireAllRowsUpdated() {
+        if (nodes.size() > 0) {
+            fireTableRowsUpdated(0, nodes.size() - 1);
+        }
+    }
+
+    /**
+     * Replies the index from node ids to rows, rebuilding it if the nodes
+     * changed since it was last used.
+     *
+     * @return the index from node ids to rows
+     */
+    protected LongIntMultiMap getRowIndex() {
+        if (!rowIndexValid) {
+            rowIndex.clear();
+            // descending, so that the rows of a node come out ascending
+            for (int i = nodes.size() - 1; i >= 0; i--) {
+                rowIndex.put(nodes.getId(i), i);
+            }
+            rowIndexValid = true;
+        }
+        return rowIndex;
+    }
+
+    /**
+     * Replies the first row <code>node</code> occurs in, or -1 if it isn't a node of
+     * the way.
+     */
+    public int getFirstRowOf(Node node) {
+        if (node == null)
+            return -1;
+        return getRowIndex().get(node.getUniqueId());
+    }
+
     public void addMemberModelListener(INodeRefModelListener listener) {
         if (listener != null) {
             listeners.addIfAbsent(listener);
@@ -143,22 +555,41 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
     }
 
     public int getColumnCount() {
-        return 1;
+        return 6;
     }
 
     public int getRowCount() {
-        return way.getNodesCount();
+        return nodes.size();
     }
 
     public Object getValueAt(int rowIndex, int columnIndex) {
         switch (columnIndex) {
-        case 0:
-            return way.getNode(rowIndex).getId();
+        case COLUMN_NODE:
+        case COLUMN_LENGTH:
+        case COLUMN_DISTANCE:
+        case COLUMN_BEARING:
+        case COLUMN_TURN:
+        case COLUMN_STATUS:
+            // the node itself rather than its boxed id or a boxed value, so that
+            // rendering doesn't allocate. Renderers read the id with getNodeId()
+            // and the values from getGeometry() and getValidator()
+            return nodes.get(rowIndex);
         }
         // should not happen
         return null;
     }
 
+    /**
+     * Replies the id of the node in row <code>idx</code> without boxing it. New
+     * nodes have negative ids.
+     *
+     * @param idx the row
+     * @return the node id
+     */
+    public long getNodeId(int idx) {
+        return nodes.getId(idx);
+    }
+
     @Override
     public boolean isCellEditable(int rowIndex, int columnIndex) {
         return columnIndex == 0;
@@ -166,126 +597,341 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
 
     @Override
     public void setValueAt(Object value, int rowIndex, int columnIndex) {
-        Node member = way.getNode(rowIndex);
+        Node member = nodes.get(rowIndex);
     }
 
     public Node getReferredPrimitive(int idx) {
-        return way.getNode(idx);
+        return nodes.get(idx);
     }
 
-    public void moveUp(int[] selectedRows) {
-        if (!canMoveUp(selectedRows))
+    /**
+     * Moves every selected range up by one row: the row above a range is
+     * moved below it.
+     *
+     * @param ranges the ranges to move
+     */
+    public void moveUp(RowRanges ranges) {
+        if (!canMoveUp(ranges))
             return;
+        history.add(new EditHistory.ShiftEdit(ranges.shifted(0), -1));
+        shiftRanges(ranges, -1);
+    }
 
-        List<Node> nodes = way.getNodes();
-        for (int row : selectedRows) {
-            Node member1 = nodes.get(row);
-            Node member2 = nodes.get(row - 1);
-            nodes.set(row, member2);
-            nodes.set(row - 1, member1);
-        }
-        way.setNodes(nodes);
-        fireTableDataChanged();
-        getSelectionModel().setValueIsAdjusting(true);
-        getSelectionModel().clearSelection();
-        for (int row : selectedRows) {
-            row--;
-            getSelectionModel().addSelectionInterval(row, row);
+    /**
+     * Moves every selected range down by one row: the row below a range is
+     * moved above it.
+     *
+     * @param ranges the ranges to move
+     */
+    public void moveDown(RowRanges ranges) {
+        if (!canMoveDown(ranges))
+            return;
+        history.add(new EditHistory.ShiftEdit(ranges.shifted(0), 1));
+        shiftRanges(ranges, 1);
+    }
+
+    /**
+     * Moves the rows in <code>ranges</code>, in their order, into one block which
+     * starts at row <code>to</code> afterwards, and selects them.
+     *
+     * @param ranges the ranges to move
+     * @param to the first row of the moved block, counted after the moved rows were taken out
+     */
+    public void moveRowsTo(RowRanges ranges, int to) {
+        if (!canMoveRowsTo(ranges, to))
+            return;
+        history.add(new EditHistory.GatherEdit(ranges.shifted(0), to));
+        gatherRanges(ranges, to);
+    }
+
+    /**
+     * Replies true if moving the rows in <code>ranges</code> to <code>to</code>
+     * changes the order of the nodes
+     */
+    public boolean canMoveRowsTo(RowRanges ranges, int to) {
+        if (ranges == null || ranges.isEmpty())
+            return false;
+        if (to < 0 || to > nodes.size() - ranges.rowCount())
+            return false;
+        return ranges.size() > 1 || ranges.first() != to;
+    }
+
+    /**
+     * Moves the rows in <code>ranges</code> into the block at <code>to</code>. Only
+     * the rows between them and the block change, so only those are updated.
+     */
+    void gatherRanges(RowRanges ranges, int to) {
+        int count = ranges.rowCount();
+        nodes.gather(ranges, to);
+        nodesEdited();
+        fireTableRowsUpdated(Math.min(ranges.first(), to), Math.max(ranges.last(), to + count - 1));
+        RowRanges block = new RowRanges(1);
+        block.add(to, to + count - 1);
+        setSelectedRanges(block);
+    }
+
+    /**
+     * The inverse of {@link #gatherRanges(RowRanges, int)}
+     */
+    void scatterRanges(int from, RowRanges ranges) {
+        int count = ranges.rowCount();
+        nodes.scatter(from, ranges);
+        nodesEdited();
+        fireTableRowsUpdated(Math.min(ranges.first(), from), Math.max(ranges.last(), from + count - 1));
+        setSelectedRanges(ranges);
+    }
+
+    /**
+     * Moves every range in <code>ranges</code> up (<code>delta</code> -1) or down
+     * (<code>delta</code> 1) by one row and selects the moved ranges
+     */
+    void shiftRanges(RowRanges ranges, int delta) {
+        if (delta < 0) {
+            for (int i = 0; i < ranges.size(); i++) {
+                nodes.moveBlock(ranges.start(i) - 1, 1, ranges.end(i));
+            }
+            nodesEdited();
+            fireTableRowsUpdated(ranges.first() - 1, ranges.last());
+        } else {
+            for (int i = ranges.size() - 1; i >= 0; i--) {
+                nodes.moveBlock(ranges.end(i) + 1, 1, ranges.start(i));
+            }
+            nodesEdited();
+            fireTableRowsUpdated(ranges.first(), ranges.last() + 1);
         }
-        getSelectionModel().setValueIsAdjusting(false);
-        fireMakeMemberVisible(selectedRows[0] - 1);
+        selectRows(ranges.shifted(delta));
+        fireMakeMemberVisible(ranges.first() + delta);
     }
 
-    public void moveDown(int[] selectedRows) {
-        if (!canMoveDown(selectedRows))
+    /**
+     * Removes the rows in <code>ranges</code>
+     *
+     * @param ranges the ranges to remove
+     */
+    public void remove(RowRanges ranges) {
+        if (!canRemove(ranges))
             return;
+        Node[] removed = new Node[ranges.rowCount()];
+        int offset = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            nodes.copyNodes(ranges.start(i), ranges.end(i), removed, offset);
+            offset += ranges.end(i) - ranges.start(i) + 1;
+        }
+        history.add(new EditHistory.RemoveEdit(ranges.shifted(0), removed));
+        removeRanges(ranges);
+    }
 
-        List<Node> nodes = way.getNodes();
-        for (int i = selectedRows.length - 1; i >= 0; i--) {
-            int row = selectedRows[i];
-            Node member1 = nodes.get(row);
-            Node member2 = nodes.get(row + 1);
-            nodes.set(row, member2);
-            nodes.set(row + 1, member1);
+    /**
+     * Removes the rows in <code>ranges</code>, last range first, so that the gap of
+     * the node buffer only travels once over the affected rows. More than
+     * {@link #BULK_EDIT_RANGES} ranges are removed in one pass instead.
+     */
+    void removeRanges(RowRanges ranges) {
+        if (ranges.size() > BULK_EDIT_RANGES) {
+            nodes.removeRanges(ranges);
+            nodesEdited();
+            fireTableDataChanged();
+            return;
         }
-        way.setNodes(nodes);
-        fireTableDataChanged();
-        getSelectionModel();
-        getSelectionModel().setValueIsAdjusting(true);
-        getSelectionModel().clearSelection();
-        for (int row : selectedRows) {
-            row++;
-            getSelectionModel().addSelectionInterval(row, row);
+        for (int i = ranges.size() - 1; i >= 0; i--) {
+            nodes.remove(ranges.start(i), ranges.end(i));
+            nodesEdited();
+            fireTableRowsDeleted(ranges.start(i), ranges.end(i));
         }
-        getSelectionModel().setValueIsAdjusting(false);
-        fireMakeMemberVisible(selectedRows[0] + 1);
     }
 
-    public void remove(int[] selectedRows) {
-        if (!canRemove(selectedRows))
+    /**
+     * Inserts <code>inserted</code> so that they end up in the rows in
+     * <code>ranges</code>, and selects them. The inverse of
+     * {@link #removeRanges(RowRanges)}. More than {@link #BULK_EDIT_RANGES} ranges
+     * are inserted in one pass.
+     */
+    void insertRanges(RowRanges ranges, Node[] inserted) {
+        if (ranges.size() > BULK_EDIT_RANGES) {
+            nodes.insertRanges(ranges, inserted);
+            nodesEdited();
+            fireTableDataChanged();
+            setSelectedRanges(ranges);
             return;
+        }
         int offset = 0;
-        List<Node> nodes = way.getNodes();
-        for (int row : selectedRows) {
-            row -= offset;
-            nodes.remove(row);
-            offset++;
+        for (int i = 0; i < ranges.size(); i++) {
+            int len = ranges.end(i) - ranges.start(i) + 1;
+            nodes.insert(ranges.start(i), inserted, offset, len);
+            offset += len;
+            nodesEdited();
+            fireTableRowsInserted(ranges.start(i), ranges.end(i));
         }
-        way.setNodes(nodes);
-        fireTableDataChanged();
+        setSelectedRanges(ranges);
     }
 
-    public boolean canMoveUp(int[] rows) {
-        if (rows == null || rows.length == 0)
+    /**
+     * Inserts each of <code>candidates</code> which isn't in the way yet into the
+     * segment nearest to it. Nodes nearest to the same segment are put in the order
+     * of their position along it.
+     *
+     * All nodes are placed through the spatial index of the segments of the way as
+     * it was before, then inserted in a single pass, as one edit.
+     *
+     * @return the number of inserted nodes
+     */
+    public int insertNearestSegments(Collection<Node> candidates) {
+        LongIntMultiMap index = getRowIndex();
+        List<Node> toInsert = new ArrayList<Node>();
+        for (Node n : candidates) {
+            if (n.getCoor() != null && !index.containsKey(n.getUniqueId())) {
+                toInsert.add(n);
+            }
+        }
+        final int count = toInsert.size();
+        if (count == 0)
+            return 0;
+
+        // the segment each node goes into, and its position along the segment
+        int[] segments = new int[count];
+        double[] positions = new double[count];
+        int size = nodes.size();
+        SegmentIndex segmentIndex = size >= 2 ? getSegmentIndex() : null;
+        for (int i = 0; i < count; i++) {
+            EastNorth en = toInsert.get(i).getEastNorth();
+            int segment = segmentIndex == null || en == null ? -1
+                    : segmentIndex.findNearestSegment(en.east(), en.north(), Double.POSITIVE_INFINITY);
+            if (segment < 0) {
+                // append, in the given order
+                segments[i] = size - 1;
+                positions[i] = 1 + i;
+            } else {
+                segments[i] = segment;
+                positions[i] = segmentIndex.segmentPosition(en.east(), en.north(), segment);
+            }
+        }
+        // sort by segment, then by position, on primitive keys: first rank the nodes
+        // by the float bits of their position, then sort the segments with the ranks
+        // in the low bits. Nodes closer than float precision keep the given order.
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = ((long) SegmentIndex.sortableBits((float) positions[i]) << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] byRank = new int[count];
+        for (int r = 0; r < count; r++) {
+            byRank[r] = (int) keys[r];
+            keys[r] = ((long) segments[byRank[r]] << 32) | r;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[count];
+        for (int j = 0; j < count; j++) {
+            order[j] = byRank[(int) keys[j]];
+        }
+
+        // the j-th inserted node ends up j rows after the end of its segment
+        Node[] inserted = new Node[count];
+        int[] rows = new int[count];
+        for (int j = 0; j < count; j++) {
+            inserted[j] = toInsert.get(order[j]);
+            rows[j] = segments[order[j]] + 1 + j;
+        }
+        RowRanges ranges = RowRanges.fromRows(rows);
+        history.add(new EditHistory.InsertRangesEdit(ranges.shifted(0), inserted));
+        insertRanges(ranges, inserted);
+        return count;
+    }
+
+    public boolean canUndo() {
+        return history.canUndo();
+    }
+
+    public boolean canRedo() {
+        return history.canRedo();
+    }
+
+    /**
+     * Undoes the last edit of the nodes
+     */
+    public void undo() {
+        history.undo(this);
+    }
+
+    /**
+     * Redoes the last undone edit of the nodes
+     */
+    public void redo() {
+        history.redo(this);
+    }
+
+    public boolean canMoveUp(RowRanges ranges) {
+        if (ranges == null || ranges.isEmpty())
             return false;
-        Arrays.sort(rows);
-        return rows[0] > 0 && way.getNodes().size() > 0;
+        return ranges.first() > 0 && nodes.size() > 0;
     }
 
-    public boolean canMoveDown(int[] rows) {
-        if (rows == null || rows.length == 0)
+    public boolean canMoveDown(RowRanges ranges) {
+        if (ranges == null || ranges.isEmpty())
             return false;
-        Arrays.sort(rows);
-        return way.getNodes().size() > 0 && rows[rows.length - 1] < way.getNodes().size() - 1;
+        return nodes.size() > 0 && ranges.last() < nodes.size() - 1;
     }
 
-    public boolean canRemove(int[] rows) {
-        if (rows == null || rows.length == 0)
+    public boolean canRemove(RowRanges ranges) {
+        if (ranges == null || ranges.isEmpty())
             return false;
         return true;
     }
 
     public DefaultListSelectionModel getSelectionModel() {
         if (listSelectionModel == null) {
-            listSelectionModel = new DefaultListSelectionModel();
+            listSelectionModel = new RowSelectionModel();
             listSelectionModel.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         }
         return listSelectionModel;
     }
 
-    protected List<Integer> getSelectedIndices() {
-        ArrayList<Integer> selectedIndices = new ArrayList<Integer>();
-        for (int i = 0; i < way.getNodes().size(); i++) {
-            if (getSelectionModel().isSelectedIndex(i)) {
-                selectedIndices.add(i);
+    /**
+     * Replies the selected rows as ranges
+     *
+     * @return the selected ranges. Never null, but may be empty.
+     */
+    public RowRanges getSelectedRanges() {
+        if (!isViewPermuted())
+            return RowRanges.fromSelectionModel(getSelectionModel(), nodes.size());
+        RowRanges view = RowRanges.fromSelectionModel(getSelectionModel(), rowSorter.getViewRowCount());
+        BitSet rows = new BitSet();
+        for (int i = 0; i < view.size(); i++) {
+            for (int v = view.start(i); v <= view.end(i); v++) {
+                rows.set(rowSorter.convertRowIndexToModel(v));
+            }
+        }
+        return RowRanges.fromBitSet(rows);
+    }
+
+    /**
+     * Replaces the selection with the rows in <code>ranges</code>. Rows which are
+     * filtered out of the table aren't selected.
+     */
+    private void selectRows(RowRanges ranges) {
+        if (!isViewPermuted()) {
+            ranges.selectIn(getSelectionModel());
+            return;
+        }
+        BitSet rows = new BitSet();
+        for (int i = 0; i < ranges.size(); i++) {
+            for (int row = ranges.start(i); row <= ranges.end(i); row++) {
+                int v = rowSorter.convertRowIndexToView(row);
+                if (v >= 0) {
+                    rows.set(v);
+                }
             }
         }
-        return selectedIndices;
+        RowRanges.fromBitSet(rows).selectIn(getSelectionModel());
     }
 
     private void addMembersAtIndex(List<Node> primitives, int index) {
-        if (primitives == null)
+        if (primitives == null || primitives.isEmpty())
             return;
-        int idx = index;
-        List<Node> nodes = way.getNodes();
-        for (Node primitive : primitives) {
-            nodes.set(idx++, primitive);
-        }
-        way.setNodes(nodes);
-        fireTableDataChanged();
-        getSelectionModel().clearSelection();
-        getSelectionModel().addSelectionInterval(index, index + primitives.size() - 1);
-//        fireMakeMemberVisible(index);
+        Node[] inserted = primitives.toArray(new Node[primitives.size()]);
+        history.add(new EditHistory.InsertEdit(index, inserted));
+        RowRanges ranges = new RowRanges(1);
+        ranges.add(index, index + inserted.length - 1);
+        insertRanges(ranges, inserted);
     }
 
     public void addMembersAtBeginning(List<Node> primitives) {
@@ -293,7 +939,7 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
     }
 
     public void addMembersAtEnd(List<Node> primitives) {
-        addMembersAtIndex(primitives, way.getNodesCount());
+        addMembersAtIndex(primitives, nodes.size());
     }
 
     public void addMembersBeforeIdx(List<Node> primitives, int idx) {
@@ -310,9 +956,12 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
      * @return a collection with the currently selected relation members
      */
     public Collection<Node> getSelectedMembers() {
-        ArrayList<Node> selectedMembers = new ArrayList<Node>();
-        for (int i : getSelectedIndices()) {
-            selectedMembers.add(way.getNode(i));
+        RowRanges ranges = getSelectedRanges();
+        ArrayList<Node> selectedMembers = new ArrayList<Node>(ranges.rowCount());
+        for (int r = 0; r < ranges.size(); r++) {
+            for (int i = ranges.start(r); i <= ranges.end(r); i++) {
+                selectedMembers.add(nodes.get(i));
+            }
         }
         return selectedMembers;
     }
@@ -335,9 +984,10 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
     public Set<OsmPrimitive> getChildPrimitives(Collection<? extends OsmPrimitive> referenceSet) {
         HashSet<OsmPrimitive> ret = new HashSet<OsmPrimitive>();
         if (referenceSet == null) return null;
-        for (Node m: way.getNodes()) {
-            if (referenceSet.contains(m)) {
-                ret.add(m);
+        LongIntMultiMap index = getRowIndex();
+        for (OsmPrimitive p : referenceSet) {
+            if (p instanceof Node && index.containsKey(p.getUniqueId())) {
+                ret.add(p);
             }
         }
         return ret;
@@ -354,16 +1004,31 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
             return;
         }
 
-        // lookup the indices for the respective members
+        // lookup the indices for the respective members. Closed ways
+        // refer to their first node twice, so select every row of a member
         //
-        Set<Integer> selectedIndices = new HashSet<Integer>();
+        LongIntMultiMap index = getRowIndex();
+        dirtyRows.clear();
         for (Node member : selectedMembers) {
-            int idx = way.getNodes().indexOf(member);
-            if ( idx >= 0) {
-                selectedIndices.add(idx);
+            for (int e = index.firstEntry(member.getUniqueId()); e != LongIntMultiMap.NONE; e = index.nextEntry(e)) {
+                dirtyRows.set(index.valueAt(e));
             }
         }
-        setSelectedMembersIdx(selectedIndices);
+        setSelectedRanges(RowRanges.fromBitSet(dirtyRows));
+    }
+
+    /**
+     * Selects the rows in <code>ranges</code> and makes the first of them visible
+     *
+     * @param ranges the ranges to select
+     */
+    public void setSelectedRanges(RowRanges ranges) {
+        if (ranges == null || ranges.isEmpty()) {
+            getSelectionModel().clearSelection();
+            return;
+        }
+        selectRows(ranges);
+        fireMakeMemberVisible(ranges.first());
     }
 
     /**
@@ -381,7 +1046,10 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
         getSelectionModel().setValueIsAdjusting(true);
         getSelectionModel().clearSelection();
         for (int row : selectedIndices) {
-            getSelectionModel().addSelectionInterval(row, row);
+            int v = isViewPermuted() ? rowSorter.convertRowIndexToView(row) : row;
+            if (v >= 0) {
+                getSelectionModel().addSelectionInterval(v, v);
+            }
         }
         getSelectionModel().setValueIsAdjusting(false);
         // make the first selected member visible
@@ -403,6 +1071,22 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
         return layer.data.isSelected(primitive);
     }
 
+    /**
+     * Replies true if the node in row <code>row</code> is currently selected in the
+     * layer this model is attached to
+     *
+     * @param row the row
+     * @return true if the node in row <code>row</code> is currently selected in the
+     * layer this model is attached to, false otherwise
+     */
+    public boolean isInJosmSelection(int row) {
+        if (!josmSelectedRowsValid) {
+            computeJosmSelectedRows(layer.data.getSelected(), josmSelectedRows);
+            josmSelectedRowsValid = true;
+        }
+        return josmSelectedRows.get(row);
+    }
+
     /**
      * Replies true if the layer this model belongs to is equal to the active
      * layer
@@ -456,35 +1140,40 @@ public class WayRefTableModel extends AbstractTableModel implements TableModelLi
     }
 
     /**
-     * Reverse the relation members.
+     * Reverse the selected nodes, or all nodes if at most one is selected.
      */
     void reverse() {
-        List<Integer> selectedIndices = getSelectedIndices();
-        List<Integer> selectedIndicesReversed = getSelectedIndices();
-
-        if (selectedIndices.size() <= 1) {
-            List<Node> nodes = way.getNodes();
-            Collections.reverse(nodes);
-            way.setNodes(nodes);
-            fireTableDataChanged();
-//            setSelectedMembers(way);
-        } else {
-            Collections.reverse(selectedIndicesReversed);
-
-            ArrayList<Node> newMembers = new ArrayList<Node>(way.getNodes());
+        RowRanges ranges = getSelectedRanges();
+        if (ranges.rowCount() <= 1) {
+            if (nodes.size() <= 1)
+                return;
+            ranges = new RowRanges(1);
+            ranges.add(0, nodes.size() - 1);
+        }
+        history.add(new EditHistory.ReverseEdit(ranges));
+        reverseRanges(ranges);
+    }
 
-            for (int i=0; i < selectedIndices.size(); i++) {
-                newMembers.set(selectedIndices.get(i), way.getNode(selectedIndicesReversed.get(i)));
+    /**
+     * Reverses the order of the rows in <code>ranges</code>, walking them from both
+     * ends at once
+     */
+    void reverseRanges(RowRanges ranges) {
+        int lo = 0;
+        int hi = ranges.size() - 1;
+        int i = ranges.start(lo);
+        int j = ranges.end(hi);
+        while (i < j) {
+            nodes.swap(i, j);
+            if (++i > ranges.end(lo)) {
+                i = ++lo < ranges.size() ? ranges.start(lo) : Integer.MAX_VALUE;
+            }
+            if (--j < ranges.start(hi)) {
+                j = --hi >= 0 ? ranges.end(hi) : Integer.MIN_VALUE;
             }
-
-            if (way.getNodesCount() != newMembers.size()) throw new AssertionError();
-            List<Node> nodes = way.getNodes();
-            nodes.clear();
-            nodes.addAll(newMembers);
-            way.setNodes(nodes);
-            fireTableDataChanged();
-            setSelectedMembersIdx(selectedIndices);
         }
+        nodesEdited();
+        fireTableRowsUpdated(ranges.first(), ranges.last());
     }
 
 }
@@ -0,0 +1,83 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Rectangle;
+
+import javax.swing.JLabel;
+import javax.swing.JTable;
+import javax.swing.SwingConstants;
+import javax.swing.table.TableCellRenderer;
+
+/**
+ * Renders the status column of a {@link WayRefTable}: a short flag per problem
+ * which the {@link WayValidator} of the model found at the row, and their
+ * descriptions as tooltip.
+ */
+public class WayValidationCellRenderer extends JLabel implements TableCellRenderer {
+
+    private static final Color FGCOLOR_PROBLEM = new Color(0xcc0000);
+
+    /** the flags of the problems, in the order of the PROBLEM_* bits */
+    private final String[] flags = new String[] {
+            tr("dup"), tr("0m"), tr("spike"), tr("rep"), tr("cross")
+    };
+    private final StringBuilder buffer = new StringBuilder(32);
+
+    public WayValidationCellRenderer() {
+        setOpaque(true);
+        setHorizontalAlignment(SwingConstants.LEFT);
+        setForeground(FGCOLOR_PROBLEM);
+    }
+
+    protected void format(int problems) {
+        buffer.setLength(0);
+        for (int i = 0; i < flags.length; i++) {
+            if ((problems & (1 << i)) != 0) {
+                if (buffer.length() > 0) {
+                    buffer.append(' ');
+                }
+                buffer.append(flags[i]);
+            }
+        }
+        setText(buffer.toString());
+        setToolTipText(WayValidator.describe(problems));
+    }
+
+    public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus,
+            int row, int column) {
+        WayRefTableModel model = (WayRefTableModel) table.getModel();
+        int modelRow = table.convertRowIndexToModel(row);
+        if (value == null || modelRow < 0 || modelRow >= model.getRowCount()) {
+            setText("");
+            setToolTipText(null);
+            setBackground(WayRefTableCellRenderer.BGCOLOR_EMPTY_ROW);
+            return this;
+        }
+        format(model.getValidator().getProblems(modelRow));
+        setBackground(isSelected ? WayRefTableCellRenderer.BGCOLOR_SELECTED : Color.WHITE);
+        return this;
+    }
+
+    /*
+     * Overridden for performance reasons, see WayRefTableCellRenderer
+     */
+
+    @Override
+    public void validate() {}
+
+    @Override
+    public void revalidate() {}
+
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {}
+
+    @Override
+    public void repaint(Rectangle r) {}
+
+    @Override
+    public void repaint() {}
+}
@@ -0,0 +1,532 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+import org.openstreetmap.josm.Main;
+
+/**
+ * Finds problems in the nodes of a {@link WayRefTableModel}: consecutive duplicate
+ * nodes, zero-length segments, spikes, nodes which occur more than once without
+ * closing the way, and segments which cross other segments of the way.
+ *
+ * The local checks only look at a row and its neighbours. They run off the EDT in
+ * chunks of at most {@link WayGeometry#CHUNK_SIZE} rows, in parallel, and only for
+ * the rows around inserted, removed, moved or reordered rows. As in
+ * {@link WayGeometry}, results for a layout of the rows which changed in the
+ * meantime are dropped.
+ *
+ * Self-intersections are found by querying the {@link SegmentIndex} of the model,
+ * and only for the segments which changed: a changed segment may cross any other
+ * segment, which the query finds, and may have been the only one crossing a segment
+ * flagged before, so these are queried again as well. The queries run off the EDT
+ * on a {@link SegmentIndex.Snapshot}, in parallel chunks of at most
+ * {@link WayGeometry#CHUNK_SIZE} segments. Any change of the rows cancels them;
+ * their segments are then queried again on a new snapshot. Repeated nodes are
+ * looked up in the row index of the model.
+ */
+public class WayValidator implements TableModelListener {
+
+    /** the node is the same as the one in the previous row */
+    public static final int PROBLEM_DUPLICATE = 1;
+    /** the segment ending at the node has no length, but different nodes */
+    public static final int PROBLEM_ZERO_LENGTH = 2;
+    /** the way turns back at the node */
+    public static final int PROBLEM_SPIKE = 4;
+    /** the node occurs elsewhere in the way, other than closing it */
+    public static final int PROBLEM_REPEATED = 8;
+    /** the segment ending at the node crosses another segment of the way */
+    public static final int PROBLEM_SELF_INTERSECTION = 16;
+
+    public static final String PREF_SPIKE_ANGLE = "waydetails.spike-angle";
+    /** turns sharper than this many degrees are spikes */
+    public static final int DEFAULT_SPIKE_ANGLE = 170;
+
+    private final WayRefTableModel model;
+
+    private int size;
+    private final BitSet duplicate = new BitSet();
+    private final BitSet zeroLength = new BitSet();
+    private final BitSet spike = new BitSet();
+    private final BitSet crossing = new BitSet();
+
+    /** rows whose local checks have to run */
+    private final BitSet dirty = new BitSet();
+    /** rows whose local checks are running */
+    private final BitSet inFlight = new BitSet();
+    /** the segments, named by the row they end at, to check for crossings */
+    private final BitSet uncrossed = new BitSet();
+    /** the segments being checked for crossings */
+    private final BitSet crossingInFlight = new BitSet();
+
+    /** incremented whenever rows are inserted, removed or checked again */
+    private int layout;
+    /** set to cancel the jobs of the current layout */
+    private AtomicBoolean cancelled = new AtomicBoolean();
+    /** incremented whenever rows change, and set to cancel the crossing checks */
+    private int crossingLayout;
+    private AtomicBoolean crossingCancelled = new AtomicBoolean();
+    private boolean scheduled;
+    private boolean disposed;
+
+    public WayValidator(WayRefTableModel model) {
+        this.model = model;
+        reset();
+    }
+
+    /**
+     * Stops validating; running checks are cancelled
+     */
+    public void dispose() {
+        disposed = true;
+        newLayout();
+        crossingCancelled.set(true);
+    }
+
+    /**
+     * Replies the problems at <code>row</code>, a combination of the
+     * <code>PROBLEM_*</code> flags. Problems which aren't checked yet aren't
+     * included.
+     */
+    public int getProblems(int row) {
+        if (row < 0 || row >= size)
+            return 0;
+        int problems = 0;
+        if (duplicate.get(row)) {
+            problems |= PROBLEM_DUPLICATE;
+        }
+        if (zeroLength.get(row)) {
+            problems |= PROBLEM_ZERO_LENGTH;
+        }
+        if (spike.get(row)) {
+            problems |= PROBLEM_SPIKE;
+        }
+        if (crossing.get(row)) {
+            problems |= PROBLEM_SELF_INTERSECTION;
+        }
+        if (isRepeated(row)) {
+            problems |= PROBLEM_REPEATED;
+        }
+        return problems;
+    }
+
+    private boolean isRepeated(int row) {
+        long id = model.getNodeId(row);
+        int count = model.getRowIndex().count(id);
+        if (count < 2)
+            return false;
+        boolean closing = model.getNodeId(0) == model.getNodeId(size - 1);
+        if (count == 2) {
+            if (closing && (row == 0 || row == size - 1))
+                return false;
+            // consecutive duplicates are reported as such
+            if (row > 0 && model.getNodeId(row - 1) == id || row < size - 1 && model.getNodeId(row + 1) == id)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replies the first row after <code>row</code> with a problem, wrapping around
+     * at the end of the way, or -1 if no row has a problem
+     */
+    public int findNextProblem(int row) {
+        for (int i = 1; i <= size; i++) {
+            int r = (row + i) % size;
+            if (r < 0) {
+                r += size;
+            }
+            if (getProblems(r) != 0)
+                return r;
+        }
+        return -1;
+    }
+
+    /**
+     * Replies true if checks are pending
+     */
+    public boolean isValidating() {
+        return !dirty.isEmpty() || !inFlight.isEmpty() || !uncrossed.isEmpty() || !crossingInFlight.isEmpty();
+    }
+
+    /**
+     * Replies a description of <code>problems</code>, or null if there are none
+     */
+    public static String describe(int problems) {
+        if (problems == 0)
+            return null;
+        StringBuilder sb = new StringBuilder();
+        appendIf(sb, problems, PROBLEM_DUPLICATE, tr("Same node as the previous one"));
+        appendIf(sb, problems, PROBLEM_ZERO_LENGTH, tr("Zero-length segment"));
+        appendIf(sb, problems, PROBLEM_SPIKE, tr("Spike"));
+        appendIf(sb, problems, PROBLEM_REPEATED, tr("Node occurs more than once"));
+        appendIf(sb, problems, PROBLEM_SELF_INTERSECTION, tr("Segment crosses the way"));
+        return sb.toString();
+    }
+
+    private static void appendIf(StringBuilder sb, int problems, int problem, String text) {
+        if ((problems & problem) != 0) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(text);
+        }
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* Tracking the rows of the model                                              */
+    /* --------------------------------------------------------------------------- */
+
+    public void tableChanged(TableModelEvent e) {
+        if (disposed || e.getColumn() != TableModelEvent.ALL_COLUMNS)
+            // column updates, among them the ones fired for the results
+            return;
+        int first = e.getFirstRow();
+        int last = e.getLastRow();
+        if (last == Integer.MAX_VALUE || first == TableModelEvent.HEADER_ROW) {
+            reset();
+            return;
+        }
+        switch (e.getType()) {
+        case TableModelEvent.INSERT:
+            shiftLayout(first, last - first + 1);
+            markDirty(first - 1, last + 1);
+            break;
+        case TableModelEvent.DELETE:
+            shiftLayout(first, first - last - 1);
+            markDirty(first - 1, first);
+            break;
+        default:
+            markDirty(first - 1, last + 1);
+            break;
+        }
+        newCrossingLayout();
+        schedule();
+    }
+
+    private void reset() {
+        newLayout();
+        size = model.getRowCount();
+        duplicate.clear();
+        zeroLength.clear();
+        spike.clear();
+        crossing.clear();
+        dirty.clear();
+        dirty.set(0, size);
+        inFlight.clear();
+        uncrossed.clear();
+        uncrossed.set(1, Math.max(size, 1));
+        crossingInFlight.clear();
+        newCrossingLayout();
+        schedule();
+    }
+
+    private void newLayout() {
+        layout++;
+        cancelled.set(true);
+        cancelled = new AtomicBoolean();
+    }
+
+    /**
+     * Cancels the crossing checks, which run on the rows as they were, and checks
+     * their segments again
+     */
+    private void newCrossingLayout() {
+        crossingLayout++;
+        crossingCancelled.set(true);
+        crossingCancelled = new AtomicBoolean();
+        uncrossed.or(crossingInFlight);
+        crossingInFlight.clear();
+    }
+
+    private void markDirty(int first, int last) {
+        first = Math.max(first, 0);
+        last = Math.min(last, size - 1);
+        if (first <= last) {
+            dirty.set(first, last + 1);
+            // the segments ending at these rows and the one after them
+            uncrossed.set(Math.max(first, 1), Math.min(last + 2, size));
+            // the flagged segments may have crossed only the old ones
+            uncrossed.or(crossing);
+        }
+    }
+
+    /**
+     * Shifts the results after an insertion (<code>delta</code> &gt; 0) or a
+     * removal at <code>from</code>. Rows being checked are checked again.
+     */
+    private void shiftLayout(int from, int delta) {
+        newLayout();
+        size += delta;
+        dirty.or(inFlight);
+        inFlight.clear();
+        RowArrays.shift(dirty, from, delta);
+        RowArrays.shift(duplicate, from, delta);
+        RowArrays.shift(zeroLength, from, delta);
+        RowArrays.shift(spike, from, delta);
+        // kept until they are checked again, so that the flags don't flicker
+        RowArrays.shift(crossing, from, delta);
+        RowArrays.shift(uncrossed, from, delta);
+        RowArrays.shift(crossingInFlight, from, delta);
+    }
+
+    /* --------------------------------------------------------------------------- */
+    /* Checking                                                                    */
+    /* --------------------------------------------------------------------------- */
+
+    private void schedule() {
+        if (scheduled || disposed)
+            return;
+        scheduled = true;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                scheduled = false;
+                submitDirtyRows();
+                submitCrossings();
+            }
+        });
+    }
+
+    /**
+     * Submits a job per chunk of dirty rows. Each job gets a copy of the ids and
+     * the coordinates of its rows and their neighbours.
+     */
+    private void submitDirtyRows() {
+        if (disposed)
+            return;
+        if (dirty.intersects(inFlight)) {
+            // rows changed again while they were checked, see WayGeometry
+            newLayout();
+            dirty.or(inFlight);
+            inFlight.clear();
+        }
+        double spikeAngle = Main.pref == null ? DEFAULT_SPIKE_ANGLE
+                : Main.pref.getInteger(PREF_SPIKE_ANGLE, DEFAULT_SPIKE_ANGLE);
+        for (int first = dirty.nextSetBit(0); first >= 0 && first < size;) {
+            int last = Math.min(dirty.nextClearBit(first), size) - 1;
+            last = Math.min(last, first + WayGeometry.CHUNK_SIZE - 1);
+            int from = Math.max(first - 1, 0);
+            int to = Math.min(last + 1, size - 1);
+            int n = to - from + 1;
+            double[] east = new double[n];
+            double[] north = new double[n];
+            model.getCoordinates().copyEastNorth(from, to, east, north);
+            long[] ids = new long[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = model.getNodeId(from + i);
+            }
+            dirty.clear(first, last + 1);
+            inFlight.set(first, last + 1);
+            WayGeometry.getExecutor().execute(
+                    new ChunkJob(layout, cancelled, size, first, last, from, ids, east, north, spikeAngle));
+            first = dirty.nextSetBit(last + 1);
+        }
+        dirty.clear(size, Math.max(size, dirty.length()));
+    }
+
+    /**
+     * Stores the results of a job, on the EDT
+     */
+    private void apply(ChunkJob job) {
+        if (disposed || job.layout != layout)
+            return;
+        copyBits(job.duplicate, duplicate, job.first, job.last);
+        copyBits(job.zeroLength, zeroLength, job.first, job.last);
+        copyBits(job.spike, spike, job.first, job.last);
+        inFlight.clear(job.first, job.last + 1);
+        model.fireColumnUpdated(job.first, job.last, WayRefTableModel.COLUMN_STATUS);
+    }
+
+    private static void copyBits(BitSet src, BitSet dst, int first, int last) {
+        dst.clear(first, last + 1);
+        for (int i = src.nextSetBit(0); i >= 0; i = src.nextSetBit(i + 1)) {
+            dst.set(first + i);
+        }
+    }
+
+    /**
+     * Submits a job per chunk of segments to check for crossings, all on the same
+     * snapshot of the segment index
+     */
+    private void submitCrossings() {
+        uncrossed.clear(0);
+        uncrossed.clear(size, Math.max(size, uncrossed.length()));
+        if (disposed || uncrossed.isEmpty())
+            return;
+        SegmentIndex.Snapshot index = model.getSegmentIndex().snapshot();
+        for (int first = uncrossed.nextSetBit(0); first >= 0;) {
+            BitSet segments = new BitSet();
+            int count = 0;
+            int s = first;
+            for (; s >= 0 && count < WayGeometry.CHUNK_SIZE; s = uncrossed.nextSetBit(s + 1)) {
+                segments.set(s - first);
+                count++;
+            }
+            int last = s < 0 ? uncrossed.length() - 1 : s - 1;
+            uncrossed.clear(first, last + 1);
+            for (int i = segments.nextSetBit(0); i >= 0; i = segments.nextSetBit(i + 1)) {
+                crossingInFlight.set(first + i);
+            }
+            WayGeometry.getExecutor().execute(
+                    new CrossingJob(crossingLayout, crossingCancelled, index, first, segments));
+            first = s;
+        }
+    }
+
+    /**
+     * Stores the crossings found by a job, on the EDT
+     */
+    private void apply(CrossingJob job) {
+        if (disposed || job.layout != crossingLayout)
+            // the rows changed since, the segments are checked again
+            return;
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for (int i = job.segments.nextSetBit(0); i >= 0; i = job.segments.nextSetBit(i + 1)) {
+            int s = job.first + i;
+            crossingInFlight.clear(s);
+            if (job.crosses.get(i) != crossing.get(s)) {
+                crossing.set(s, job.crosses.get(i));
+                first = Math.min(first, s);
+                last = Math.max(last, s);
+            }
+        }
+        // segments crossing a checked one, which is the same both ways
+        for (int t = job.found.nextSetBit(0); t >= 0; t = job.found.nextSetBit(t + 1)) {
+            if (!crossing.get(t + 1)) {
+                crossing.set(t + 1);
+                first = Math.min(first, t + 1);
+                last = Math.max(last, t + 1);
+            }
+        }
+        if (uncrossed.isEmpty() && crossingInFlight.isEmpty()) {
+            // repeated nodes anywhere may have changed along with the rows
+            if (size > 0) {
+                model.fireColumnUpdated(0, size - 1, WayRefTableModel.COLUMN_STATUS);
+            }
+        } else if (first <= last) {
+            model.fireColumnUpdated(first, last, WayRefTableModel.COLUMN_STATUS);
+        }
+    }
+
+    /**
+     * Runs the local checks of the rows <code>first</code> to <code>last</code> on
+     * a copy of the rows <code>from</code> to <code>last + 1</code>
+     */
+    private class ChunkJob implements Runnable {
+        final int layout;
+        final AtomicBoolean cancelled;
+        final int size;
+        final int first;
+        final int last;
+        final int from;
+        final long[] ids;
+        final double[] east;
+        final double[] north;
+        final double spikeCos;
+        final BitSet duplicate = new BitSet();
+        final BitSet zeroLength = new BitSet();
+        final BitSet spike = new BitSet();
+
+        ChunkJob(int layout, AtomicBoolean cancelled, int size, int first, int last, int from, long[] ids,
+                double[] east, double[] north, double spikeAngle) {
+            this.layout = layout;
+            this.cancelled = cancelled;
+            this.size = size;
+            this.first = first;
+            this.last = last;
+            this.from = from;
+            this.ids = ids;
+            this.east = east;
+            this.north = north;
+            // the cosine of the angle between the segments, which is 180 - the turn
+            this.spikeCos = Math.cos(Math.toRadians(180 - spikeAngle));
+        }
+
+        public void run() {
+            for (int row = first; row <= last; row++) {
+                if ((row & 1023) == 0 && cancelled.get())
+                    return;
+                int k = row - from;
+                int i = row - first;
+                if (row > 0) {
+                    if (ids[k] == ids[k - 1]) {
+                        duplicate.set(i);
+                    } else if (east[k] == east[k - 1] && north[k] == north[k - 1]) {
+                        zeroLength.set(i);
+                    }
+                }
+                if (row > 0 && row < size - 1 && isSpike(k)) {
+                    spike.set(i);
+                }
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    apply(ChunkJob.this);
+                }
+            });
+        }
+
+        private boolean isSpike(int k) {
+            double ax = east[k - 1] - east[k];
+            double ay = north[k - 1] - north[k];
+            double bx = east[k + 1] - east[k];
+            double by = north[k + 1] - north[k];
+            double la = Math.sqrt(ax * ax + ay * ay);
+            double lb = Math.sqrt(bx * bx + by * by);
+            if (!(la > 0) || !(lb > 0))
+                // zero-length segments and missing coordinates
+                return false;
+            // the segments meet at an angle below 180 - spike angle
+            return (ax * bx + ay * by) / (la * lb) > spikeCos;
+        }
+    }
+
+    /**
+     * Checks the segments <code>first + i</code> for every <code>i</code> in
+     * <code>segments</code> for crossings, on a snapshot of the segment index
+     */
+    private class CrossingJob implements Runnable {
+        final int layout;
+        final AtomicBoolean cancelled;
+        final SegmentIndex.Snapshot index;
+        final int first;
+        final BitSet segments;
+        /** the checked segments which cross others */
+        final BitSet crosses = new BitSet();
+        /** the first rows of the segments crossing them */
+        final BitSet found = new BitSet();
+
+        CrossingJob(int layout, AtomicBoolean cancelled, SegmentIndex.Snapshot index, int first, BitSet segments) {
+            this.layout = layout;
+            this.cancelled = cancelled;
+            this.index = index;
+            this.first = first;
+            this.segments = segments;
+        }
+
+        public void run() {
+            int checked = 0;
+            for (int i = segments.nextSetBit(0); i >= 0; i = segments.nextSetBit(i + 1)) {
+                if ((++checked & 255) == 0 && cancelled.get())
+                    return;
+                // the index names segments by the row they start at
+                if (index.findCrossingSegments(first + i - 1, found)) {
+                    crosses.set(i);
+                }
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    apply(CrossingJob.this);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,62 @@
+// License: GPL. For details, see LICENSE file.
+package com.yellowbkpk.geo.waydetails.editor;
+
+import java.lang.ref.WeakReference;
+
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.gui.MapView.LayerChangeListener;
+import org.openstreetmap.josm.gui.layer.Layer;
+
+/**
+ * Registers a {@link LayerChangeListener} with the {@link MapView} without keeping
+ * it reachable from the static listener list. If the listener is collected before it
+ * was removed, for instance because its table was never unlinked, this wrapper
+ * removes itself on the next layer change.
+ */
+public class WeakLayerChangeListener implements LayerChangeListener {
+
+    private final WeakReference<LayerChangeListener> listener;
+
+    /**
+     * Adds <code>listener</code> to the {@link MapView} and replies the wrapper,
+     * which has to be passed to {@link MapView#removeLayerChangeListener(LayerChangeListener)}
+     */
+    public static WeakLayerChangeListener add(LayerChangeListener listener) {
+        WeakLayerChangeListener weak = new WeakLayerChangeListener(listener);
+        MapView.addLayerChangeListener(weak);
+        return weak;
+    }
+
+    protected WeakLayerChangeListener(LayerChangeListener listener) {
+        this.listener = new WeakReference<LayerChangeListener>(listener);
+    }
+
+    private LayerChangeListener get() {
+        LayerChangeListener l = listener.get();
+        if (l == null) {
+            MapView.removeLayerChangeListener(this);
+        }
+        return l;
+    }
+
+    public void activeLayerChange(Layer oldLayer, Layer newLayer) {
+        LayerChangeListener l = get();
+        if (l != null) {
+            l.activeLayerChange(oldLayer, newLayer);
+        }
+    }
+
+    public void layerAdded(Layer newLayer) {
+        LayerChangeListener l = get();
+        if (l != null) {
+            l.layerAdded(newLayer);
+        }
+    }
+
+    public void layerRemoved(Layer oldLayer) {
+        LayerChangeListener l = get();
+        if (l != null) {
+            l.layerRemoved(oldLayer);
+        }
+    }
+}